@@ -0,0 +1,131 @@
+import java.io.*;
+import java.net.*;
+
+/**
+ * The AdminListener class listens on a loopback-only port for
+ * operator commands, so that the server can be shut down without
+ * exposing a control verb on the public SMTP port.
+ *
+ * Supported commands, one per connection:
+ *   STATUS   - report the number of open sessions
+ *   SHUTDOWN - drain the SmtpServer and exit the application
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class AdminListener extends Thread{
+	// Private Data Members
+	private SmtpServer server;
+	private ServerSocket listener = null;
+	// Milliseconds an admin connection may take to send its command
+	private static int READ_TIMEOUT = 5000;
+	private static boolean DEBUG = false;
+
+	/**
+	 * Purpose: Binds the admin port on the loopback interface.
+	 *          Kept apart from the constructor so that Main can
+	 *          bind every port before any service starts.
+	 *
+	 * @param port The local port to listen to
+	 * @throws IOException if the port cannot be bound
+	 * @return ServerSocket the bound socket
+	 */
+	static ServerSocket bind(int port) throws IOException{
+		return new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+	}
+
+	/**
+	 * Purpose: The AdminListener constructor starts the listener
+	 *          thread on an admin port bound by bind().
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The socket was returned by bind().
+	 *
+	 * @param srv The SmtpServer being administered
+	 * @param s The bound admin socket
+	 * @return AdminListener object
+	 * @see SmtpServer.drain()
+	 *
+	 */
+	AdminListener(SmtpServer srv, ServerSocket s){
+		server = srv;
+		listener = s;
+
+		this.setDaemon(true);
+		this.start();
+	}
+
+	/**
+	 * Purpose: Accepts admin connections and executes the
+	 *          single command sent on each.  Connections are
+	 *          served one at a time, so one that sends nothing is
+	 *          dropped after READ_TIMEOUT.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   none
+	 *
+	 * @return void
+	 * @see nothing
+	 *
+	 */
+	public void run(){
+		while(true){
+			Socket admin = null;
+			try{
+				admin = listener.accept();
+				admin.setSoTimeout(READ_TIMEOUT);
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(admin.getInputStream()));
+				OutputStream out = admin.getOutputStream();
+				String cmd = in.readLine();
+				if(cmd == null) cmd = "";
+				cmd = cmd.trim().toUpperCase();
+				if(cmd.equals("STATUS")){
+					reply(out, "OK " + server.sessionCount() + " sessions "
+							+ SmtpLog.droppedCount() + " log events dropped "
+							+ SmtpTls.stats()
+							+ SmtpRelay.stats()
+							+ MailMaintenance.stats()
+							+ BufferPool.stats()
+							+ (server.isDraining() ? " draining" : "") + "\r\n");
+				}else if(cmd.equals("SHUTDOWN")){
+					reply(out, "OK draining\r\n");
+					admin.close();
+					// the shutdown hook installed by Main performs the
+					// drain before the JVM exits
+					System.exit(0);
+				}else{
+					reply(out, "ERR unrecognized command\r\n");
+				}
+			}catch(SocketTimeoutException e){
+				SmtpLog.info("Admin connection sent no command, closed");
+			}catch(Exception e){
+				SmtpLog.error(0, null, "An error occurred in the admin listener: "
+						+ e.getMessage());
+			}finally{
+				try{ if(admin != null) admin.close(); }catch(Exception c){
+					if(DEBUG) SmtpLog.debug(".. .. Failed to close admin connection");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Purpose: Writes a reply line in a single socket write.
+	 * 
+	 * @param out The admin connection's output stream
+	 * @param text The reply, including its line terminator
+	 */
+	private static void reply(OutputStream out, String text) throws IOException{
+		out.write(text.getBytes("US-ASCII"));
+		out.flush();
+	}
+}
@@ -0,0 +1,68 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * The BufferPool class is a shared pool of direct ByteBuffers used
+ * for session I/O.  A session leases a buffer only while it is
+ * reading or writing and gives it back as soon as it is empty, so
+ * idle sessions hold no buffers and the number of buffers in use
+ * tracks the number of active sessions rather than open ones.
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class BufferPool{
+	private static int BUFFER_SIZE = 16 * 1024;
+	// Free buffers kept beyond this are left to the collector
+	private static int MAX_POOLED = 512;
+
+	private static final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>(MAX_POOLED);
+	private static long allocated = 0;
+	private static int leased = 0;
+
+	/**
+	 * Purpose: Takes a cleared buffer from the pool, allocating a
+	 *          new one only when the pool is empty.
+	 *
+	 * @return ByteBuffer direct buffer of BUFFER_SIZE bytes
+	 */
+	static ByteBuffer lease(){
+		ByteBuffer b;
+		synchronized(free){
+			b = free.pollFirst();
+			leased++;
+			if(b == null) allocated++;
+		}
+		if(b == null) b = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		b.clear();
+		return b;
+	}
+
+	/**
+	 * Purpose: Returns a leased buffer.  The caller must not use
+	 *          it afterwards.
+	 *
+	 * @param b Buffer obtained from lease()
+	 */
+	static void release(ByteBuffer b){
+		synchronized(free){
+			leased--;
+			// most recently used first, it is likeliest to be cached
+			if(free.size() < MAX_POOLED) free.addFirst(b);
+		}
+	}
+
+	/**
+	 * Purpose: Summarizes the pool for the admin STATUS command.
+	 *
+	 * @return String leased, free and total allocated counts
+	 */
+	static String stats(){
+		synchronized(free){
+			return " buffers leased=" + leased + " free=" + free.size()
+				+ " allocated=" + allocated;
+		}
+	}
+}
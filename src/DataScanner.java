@@ -0,0 +1,202 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The DataScanner class processes the DATA section of a message
+ * directly on the received bytes.  It finds the terminating
+ * <CRLF>.<CRLF>, removes the dot-stuffing of lines that begin with
+ * '.', converts line ends to the "\n" used by the mailbox files,
+ * and copies everything else to the MessageSpool a line at a time.
+ *
+ * Line ends are located eight bytes at a time by treating each
+ * long word as a SIMD register (the "has zero byte" trick on
+ * word ^ 0x0a0a...); a byte at a time loop handles the tail of the
+ * buffer and non-direct buffers.  Only the byte after each line
+ * end needs to be examined for a '.'.  The scanner is resumable:
+ * a terminator or CRLF split across reads is handled by carrying
+ * state to the next call.
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class DataScanner{
+	// Scanner states
+	private static final int LINE_START = 0;
+	private static final int BODY = 1;
+	// '.' seen at the start of a line
+	private static final int DOT = 2;
+	// ".\r" seen at the start of a line
+	private static final int DOT_CR = 3;
+	// '\r' seen as the last byte of a buffer
+	private static final int BODY_CR = 4;
+
+	private static final long LF_BYTES = 0x0a0a0a0a0a0a0a0aL;
+	private static final long LOW_BITS = 0x0101010101010101L;
+	private static final long HIGH_BITS = 0x8080808080808080L;
+
+	private int state = LINE_START;
+	private long consumed = 0;
+	private int lines = 0;
+
+	/**
+	 * Purpose: Prepares the scanner for a new message.
+	 */
+	void reset(){
+		state = LINE_START;
+		consumed = 0;
+		lines = 0;
+	}
+
+	/**
+	 * Purpose: Returns the number of raw DATA bytes consumed,
+	 *          including the terminator.
+	 *
+	 * @return long bytes consumed since reset()
+	 */
+	long consumed(){
+		return consumed;
+	}
+
+	/**
+	 * Purpose: Returns the number of lines written to the spool.
+	 *
+	 * @return int line ends since reset()
+	 */
+	int lines(){
+		return lines;
+	}
+
+	/**
+	 * Purpose: Scans the buffer from its position to its limit.
+	 *          Message bytes are appended to the spool.  If the
+	 *          terminator is found, the position is left just
+	 *          after it; otherwise the whole buffer is consumed.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The buffer is in drain mode.
+	 *
+	 * @param in Received bytes
+	 * @param out Spool for the message body
+	 * @return boolean TRUE once the end of DATA has been reached
+	 * @see MessageSpool
+	 */
+	boolean scan(ByteBuffer in, MessageSpool out){
+		int start = in.position();
+		int pos = start;
+		int limit = in.limit();
+		boolean done = false;
+		while(pos < limit && !done){
+			switch(state){
+			case LINE_START:
+				if(in.get(pos) == '.'){
+					state = DOT;
+					pos++;
+				}else{
+					state = BODY;
+				}
+				break;
+			case DOT:
+				byte d = in.get(pos);
+				if(d == '\r'){
+					state = DOT_CR;
+					pos++;
+				}else if(d == '\n'){
+					// a bare LF terminator is tolerated
+					pos++;
+					done = true;
+				}else{
+					// a stuffed dot; drop it and keep the line
+					state = BODY;
+				}
+				break;
+			case DOT_CR:
+				if(in.get(pos) == '\n'){
+					pos++;
+					done = true;
+				}else{
+					out.write('\r');
+					state = BODY;
+				}
+				break;
+			case BODY_CR:
+				if(in.get(pos) == '\n'){
+					out.write('\n');
+					lines++;
+					pos++;
+					state = LINE_START;
+				}else{
+					out.write('\r');
+					state = BODY;
+				}
+				break;
+			default:
+				int nl = indexOfLF(in, pos, limit);
+				if(nl < 0){
+					// hold back a final CR; it may start a CRLF
+					int end = limit;
+					if(in.get(end - 1) == '\r'){
+						end--;
+						state = BODY_CR;
+					}
+					out.write(in, pos, end);
+					pos = limit;
+				}else{
+					int end = nl;
+					if(end > pos && in.get(end - 1) == '\r') end--;
+					out.write(in, pos, end);
+					out.write('\n');
+					lines++;
+					pos = nl + 1;
+					state = LINE_START;
+				}
+			}
+		}
+		consumed += pos - start;
+		in.position(pos);
+		return done;
+	}
+
+	/**
+	 * Purpose: Finds the next '\n' in [from, to).
+	 *
+	 * @return int its absolute index, or -1
+	 */
+	static int indexOfLF(ByteBuffer in, int from, int to){
+		int i = from;
+		if(in.isDirect()){
+			ByteOrder order = in.order();
+			in.order(ByteOrder.LITTLE_ENDIAN);
+			try{
+				// Little-endian makes the first byte in memory the
+				// least significant, so the lowest flagged byte is
+				// the first match; false positives only appear
+				// above a true match.
+				for(; i + 8 <= to; i += 8){
+					long x = in.getLong(i) ^ LF_BYTES;
+					long t = (x - LOW_BITS) & ~x & HIGH_BITS;
+					if(t != 0) return i + (Long.numberOfTrailingZeros(t) >>> 3);
+				}
+			}finally{
+				in.order(order);
+			}
+		}
+		return indexOfLFScalar(in, i, to);
+	}
+
+	/**
+	 * Purpose: The byte at a time search, used for the tail of a
+	 *          buffer and as the reference implementation.
+	 *
+	 * @return int absolute index of the next '\n', or -1
+	 */
+	static int indexOfLFScalar(ByteBuffer in, int from, int to){
+		for(int i = from; i < to; i++)
+			if(in.get(i) == '\n') return i;
+		return -1;
+	}
+}
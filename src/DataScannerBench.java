@@ -0,0 +1,179 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * The DataScannerBench class is an offline tool comparing the
+ * DataScanner with the line at a time DATA reader it replaced.
+ * Both are fed the same dot-stuffed message in 16K direct buffers,
+ * as SessionIO would lease them.  Before timing, the scanner's
+ * output is checked against the line reader with the message split
+ * at random read boundaries.
+ *
+ * Usage: java DataScannerBench [messageKB] [iterations]
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class DataScannerBench{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CHUNK = 16 * 1024;
+
+	/**
+	 * Purpose: Runs the check and the timings.
+	 *
+	 * @param args optional message size in KB and iteration count
+	 */
+	public static void main(String[] args) throws Exception{
+		int kb = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		byte[] wire = buildMessage(kb * 1024, new Random(42));
+		ByteBuffer[] in = chunks(wire, CHUNK);
+		String expected = lineByLine(in);
+
+		Random r = new Random(7);
+		for(int i=0; i < 200; i++){
+			String got = scanned(chunks(wire, 1 + r.nextInt(CHUNK)), true);
+			if(!got.equals(expected)){
+				System.out.println("MISMATCH at trial " + i);
+				System.exit(1);
+			}
+		}
+		System.out.println("Output matches the line reader for 200 random splits");
+
+		// warm up both paths
+		for(int i=0; i < 10; i++){
+			lineByLine(in);
+			scanned(in, false);
+		}
+		long lineNs = 0, scanNs = 0;
+		for(int i=0; i < iterations; i++){
+			long t = System.nanoTime();
+			lineByLine(in);
+			lineNs += System.nanoTime() - t;
+			t = System.nanoTime();
+			scanned(in, false);
+			scanNs += System.nanoTime() - t;
+		}
+		System.out.println("Message " + wire.length + " bytes, " + iterations + " iterations");
+		report("line by line", wire.length, iterations, lineNs);
+		report("DataScanner ", wire.length, iterations, scanNs);
+		System.out.println("Speedup " + String.format("%.2f", (double)lineNs / scanNs) + "x");
+	}
+
+	private static void report(String name, int bytes, int iterations, long ns){
+		double mbs = (double)bytes * iterations / (1024 * 1024) / (ns / 1e9);
+		System.out.println(name + ": " + String.format("%8.1f", mbs) + " MB/s");
+	}
+
+	/**
+	 * Purpose: Builds a dot-stuffed message of mixed line lengths,
+	 *          some lines beginning with '.', followed by the
+	 *          terminator and a pipelined QUIT.
+	 */
+	private static byte[] buildMessage(int size, Random r){
+		StringBuilder sb = new StringBuilder(size + 64);
+		String words = "the quick brown fox jumps over the lazy dog 0123456789 ";
+		while(sb.length() < size){
+			int len = r.nextInt(10) == 0 ? 0 : 20 + r.nextInt(58);
+			if(r.nextInt(20) == 0) sb.append("..");
+			for(int i=0; i < len; i++)
+				sb.append(words.charAt((i * 7 + len) % words.length()));
+			sb.append(r.nextInt(50) == 0 ? "\n" : "\r\n");
+		}
+		sb.append(".\r\nQUIT\r\n");
+		return sb.toString().getBytes(UTF8);
+	}
+
+	/**
+	 * Purpose: Splits the message into direct buffers; each run
+	 *          rewinds them before reading.
+	 */
+	private static ByteBuffer[] chunks(byte[] wire, int chunk){
+		int n = (wire.length + chunk - 1) / chunk;
+		ByteBuffer[] out = new ByteBuffer[n];
+		for(int i=0; i < n; i++){
+			int len = Math.min(chunk, wire.length - i * chunk);
+			out[i] = ByteBuffer.allocateDirect(len);
+			out[i].put(wire, i * chunk, len).flip();
+		}
+		return out;
+	}
+
+	/**
+	 * Purpose: The replaced approach: split the input into lines
+	 *          a byte at a time, decode each line, unstuff it and
+	 *          append it to the message.
+	 */
+	private static String lineByLine(ByteBuffer[] in){
+		StringBuilder msg = new StringBuilder();
+		byte[] line = new byte[256];
+		int n = 0;
+		for(int c=0; c < in.length; c++){
+			ByteBuffer b = in[c];
+			b.position(0);
+			while(b.hasRemaining()){
+				byte x = b.get();
+				if(x != '\n'){
+					if(n == line.length){
+						byte[] bigger = new byte[line.length * 2];
+						System.arraycopy(line, 0, bigger, 0, n);
+						line = bigger;
+					}
+					line[n++] = x;
+					continue;
+				}
+				if(n > 0 && line[n - 1] == '\r') n--;
+				String s = new String(line, 0, n, UTF8);
+				n = 0;
+				if(s.equals(".")) return msg.toString();
+				if(s.startsWith(".")) s = s.substring(1);
+				msg.append(s).append('\n');
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Purpose: Runs the DataScanner over the buffers.  The timed
+	 *          runs stop at the spool, which is what a session
+	 *          hands to the storage writers.
+	 *
+	 * @return String the message, or "" when not decoded
+	 */
+	private static String scanned(ByteBuffer[] in, boolean decode) throws Exception{
+		DataScanner scanner = new DataScanner();
+		MessageSpool spool = new MessageSpool();
+		for(int c=0; c < in.length; c++){
+			in[c].position(0);
+			if(scanner.scan(in[c], spool)){
+				String s = decode ? text(spool) : "";
+				spool.reset();
+				return s;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Purpose: Decodes a spool as UTF-8 text, copying it through a
+	 *          temporary file as the storage writers do.
+	 */
+	private static String text(MessageSpool spool) throws IOException{
+		File f = File.createTempFile("bench", ".msg");
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try{
+			spool.writeTo(raf.getChannel());
+			byte[] all = new byte[(int)raf.length()];
+			raf.seek(0);
+			raf.readFully(all);
+			return new String(all, UTF8);
+		}finally{
+			raf.close();
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,452 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * The MailIndex class keeps the offset index of one mailbox file.
+ * The index is a dotfile beside the mailbox (".user.idx") holding
+ * one fixed size record per message, so a reader can find, size
+ * and skip messages without scanning the mailbox.  The root's
+ * writer thread appends a record after each delivery; an index
+ * that stops short of the end of the mailbox (an older mailbox,
+ * mail appended by Rebalance, or a crash between the two writes)
+ * is completed by scanning only the missing tail for the
+ * "\n\nFROM:<" separator, in any case, as the envelope is stored
+ * as the client typed it.
+ *
+ * Only the root's writer thread may change an index or rewrite a
+ * mailbox; see MailStore.
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class MailIndex{
+	// offset(8) length(8) time(8) lines(4) flags(4)
+	static final int RECORD = 32;
+	static final int DELETED = 1;
+	// A message is compacted out once deleted mail reaches this
+	// share of the mailbox
+	private static int COMPACT_RATIO = 4;
+	// Largest single transferTo, so compaction can be paced
+	private static long CHUNK = 1024 * 1024;
+	// "\n\nFROM:<" as a big-endian long; scanned bytes are
+	// upper-cased before they are compared
+	private static final long SEPARATOR = 0x0a0a46524f4d3a3cL;
+	private static boolean DEBUG = false;
+
+	private File box;
+	private File idx;
+
+	/**
+	 * One message in the mailbox.  The stored message begins with
+	 * a "\n" separator, followed by the envelope and body lines.
+	 */
+	static class Entry{
+		long offset;
+		long length;
+		long time;
+		// line ends after the leading separator
+		int lines;
+		int flags;
+		// record number in the index file
+		int slot;
+		// the mailbox or segment holding it; not stored
+		File file;
+
+		boolean isDeleted(){
+			return (flags & DELETED) != 0;
+		}
+
+		/**
+		 * Purpose: Size of the message as sent to a client, with
+		 *          CRLF line ends and without the separator.
+		 *
+		 * @return long octets
+		 */
+		long wireSize(){
+			return length - 1 + lines;
+		}
+	}
+
+	/**
+	 * Purpose: The MailIndex constructor names the mailbox and its
+	 *          index; nothing is read until load().
+	 *
+	 * @param mailbox The mailbox file
+	 * @return MailIndex object
+	 */
+	MailIndex(File mailbox){
+		box = mailbox;
+		idx = indexFile(mailbox);
+	}
+
+	/**
+	 * Purpose: Returns the index file kept for a mailbox.
+	 *
+	 * @param mailbox The mailbox file
+	 * @return File the index beside it
+	 */
+	static File indexFile(File mailbox){
+		return new File(mailbox.getParentFile(), "." + mailbox.getName() + ".idx");
+	}
+
+	/**
+	 * Purpose: Reads the index, bringing it up to date with the
+	 *          mailbox first.  An index reaching past the end of
+	 *          the mailbox no longer describes it and is rebuilt.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   Called on the root's writer thread.
+	 *
+	 * @throws IOException if either file cannot be read or written
+	 * @return List<Entry> every message, deleted ones included
+	 * @see scan
+	 */
+	List<Entry> load() throws IOException{
+		List<Entry> list = update();
+		for(int i=0; i < list.size(); i++)
+			list.get(i).file = box;
+		return list;
+	}
+
+	private List<Entry> update() throws IOException{
+		List<Entry> list = read();
+		long end = list.isEmpty() ? 0 : last(list);
+		long size = box.length();
+		if(end > size){
+			SmtpLog.info("Rebuilding index of " + box);
+			list.clear();
+			end = 0;
+			idx.delete();
+		}
+		if(end < size){
+			List<Entry> tail = scan(end, size);
+			for(int i=0; i < tail.size(); i++){
+				Entry e = tail.get(i);
+				e.slot = list.size();
+				list.add(e);
+			}
+			write(tail, list.size() - tail.size());
+		}
+		return list;
+	}
+
+	/**
+	 * Purpose: Records a message just appended to the mailbox.  If
+	 *          the index does not already end where the message
+	 *          starts it is left alone, and the next load() scans
+	 *          the difference instead.
+	 *
+	 * @param e The new message
+	 * @throws IOException if the index cannot be written
+	 */
+	void append(Entry e) throws IOException{
+		long records = idx.length() / RECORD;
+		if(records == 0 && e.offset > 0) return;
+		if(records > 0){
+			RandomAccessFile f = new RandomAccessFile(idx, "r");
+			try{
+				f.seek((records - 1) * RECORD);
+				long end = f.readLong() + f.readLong();
+				if(end != e.offset) return;
+			}finally{
+				f.close();
+			}
+		}
+		e.slot = (int)records;
+		write(Collections.singletonList(e), e.slot);
+	}
+
+	/**
+	 * Purpose: Records mail copied onto the end of the mailbox
+	 *          from another one, as Rebalance does, keeping the
+	 *          records' times and flags.  If the index does not
+	 *          end where the copy starts it is left alone, and the
+	 *          next load() scans the copied mail instead.
+	 *
+	 * @param moved Entries from a load() of the source mailbox
+	 * @param base Length of this mailbox before the copy
+	 * @throws IOException if the index cannot be written
+	 */
+	void appendMoved(List<Entry> moved, long base) throws IOException{
+		List<Entry> indexed = read();
+		long end = indexed.isEmpty() ? 0 : last(indexed);
+		if(end != base || moved.isEmpty()) return;
+		List<Entry> shifted = new ArrayList<Entry>();
+		for(int i=0; i < moved.size(); i++){
+			Entry e = moved.get(i);
+			Entry n = entry(base + e.offset, e.length, e.lines, e.time);
+			n.flags = e.flags;
+			n.slot = indexed.size() + i;
+			shifted.add(n);
+		}
+		write(shifted, indexed.size());
+	}
+
+	/**
+	 * Purpose: Flags messages as deleted.  The mail stays in the
+	 *          mailbox until compact().
+	 *
+	 * @param deleted Entries from a previous load()
+	 * @throws IOException if the index cannot be written
+	 */
+	void markDeleted(List<Entry> deleted) throws IOException{
+		RandomAccessFile f = new RandomAccessFile(idx, "rw");
+		try{
+			for(int i=0; i < deleted.size(); i++){
+				Entry e = deleted.get(i);
+				e.flags |= DELETED;
+				f.seek((long)e.slot * RECORD + 28);
+				f.writeInt(e.flags);
+			}
+		}finally{
+			f.close();
+		}
+	}
+
+	/**
+	 * Purpose: Returns the delivery time of the oldest message,
+	 *          read from the first index record.  Without an index
+	 *          the mailbox's modification time is used, which is
+	 *          no earlier than any message in it.
+	 *
+	 * @return long milliseconds, or 0 for a missing mailbox
+	 */
+	long oldest() throws IOException{
+		if(idx.length() < RECORD) return box.lastModified();
+		RandomAccessFile f = new RandomAccessFile(idx, "r");
+		try{
+			f.seek(16);
+			return f.readLong();
+		}finally{
+			f.close();
+		}
+	}
+
+	/**
+	 * Purpose: Reports whether enough of the mailbox would be
+	 *          removed to be worth rewriting: a quarter of it, or
+	 *          all of it, in which case the file is just deleted.
+	 *
+	 * @param list Entries from load()
+	 * @param keep As for compact()
+	 * @return boolean TRUE if compact() should run
+	 */
+	boolean needsCompaction(List<Entry> list, Filter keep){
+		long removable = 0, total = 0;
+		for(int i=0; i < list.size(); i++){
+			Entry e = list.get(i);
+			total += e.length;
+			if(e.isDeleted() || (keep != null && !keep.keep(e))) removable += e.length;
+		}
+		return removable > 0 && (removable * COMPACT_RATIO >= total || removable == total);
+	}
+
+	/**
+	 * Purpose: Rewrites the mailbox without the entries the
+	 *          filter rejects.  The kept messages are copied with
+	 *          FileChannel.transferTo into a temporary file, which
+	 *          then replaces the mailbox, and a matching index is
+	 *          written.  A mailbox left with no messages is
+	 *          removed.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   Called on the root's writer thread, with the entries of a
+	 *   load() made on that thread.
+	 *
+	 * @param list Entries from load()
+	 * @param keep Optional filter for the messages not flagged as
+	 *             deleted; null keeps them all
+	 * @param pace Optional pacing, told of each chunk copied
+	 * @throws IOException if the rewrite fails; the mailbox is
+	 *                     then unchanged
+	 * @return long bytes removed
+	 * @see MailStore
+	 */
+	long compact(List<Entry> list, Filter keep, Pacer pace) throws IOException{
+		File tmp = new File(box.getParentFile(), "." + box.getName() + ".compact");
+		List<Entry> kept = new ArrayList<Entry>();
+		long removed = 0;
+		FileChannel in = new FileInputStream(box).getChannel();
+		try{
+			FileChannel out = new FileOutputStream(tmp).getChannel();
+			try{
+				for(int i=0; i < list.size(); i++){
+					Entry e = list.get(i);
+					boolean stay = !e.isDeleted() && (keep == null || keep.keep(e));
+					if(!stay){
+						removed += e.length;
+						continue;
+					}
+					Entry n = new Entry();
+					n.offset = out.position();
+					n.length = e.length;
+					n.time = e.time;
+					n.lines = e.lines;
+					n.flags = e.flags & ~DELETED;
+					n.slot = kept.size();
+					long pos = e.offset, end = e.offset + e.length;
+					while(pos < end){
+						long moved = in.transferTo(pos, Math.min(end - pos, CHUNK), out);
+						pos += moved;
+						if(pace != null) pace.pace(moved);
+					}
+					kept.add(n);
+				}
+				out.force(false);
+			}finally{
+				out.close();
+			}
+		}catch(IOException e){
+			tmp.delete();
+			throw e;
+		}finally{
+			in.close();
+		}
+		if(kept.isEmpty()){
+			tmp.delete();
+			box.delete();
+			idx.delete();
+			return removed;
+		}
+		if(!tmp.renameTo(box)){
+			tmp.delete();
+			throw new IOException("cannot replace " + box);
+		}
+		idx.delete();
+		write(kept, 0);
+		if(DEBUG) SmtpLog.debug("Compacted " + box + ", " + removed + " bytes removed");
+		return removed;
+	}
+
+	/**
+	 * Chooses the messages that compact() keeps.
+	 */
+	interface Filter{
+		boolean keep(Entry e);
+	}
+
+	/**
+	 * Lets a background caller limit the I/O rate of compact().
+	 * Throwing aborts the rewrite and leaves the mailbox as it
+	 * was.
+	 */
+	interface Pacer{
+		void pace(long bytes) throws IOException;
+	}
+
+	private static long last(List<Entry> list){
+		Entry e = list.get(list.size() - 1);
+		return e.offset + e.length;
+	}
+
+	private List<Entry> read() throws IOException{
+		List<Entry> list = new ArrayList<Entry>();
+		if(!idx.exists()) return list;
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(idx)));
+		try{
+			long records = idx.length() / RECORD;
+			for(int i=0; i < records; i++){
+				Entry e = new Entry();
+				e.offset = in.readLong();
+				e.length = in.readLong();
+				e.time = in.readLong();
+				e.lines = in.readInt();
+				e.flags = in.readInt();
+				e.slot = i;
+				list.add(e);
+			}
+		}finally{
+			in.close();
+		}
+		return list;
+	}
+
+	/**
+	 * Purpose: Writes records starting at the given record number.
+	 */
+	private void write(List<Entry> records, int first) throws IOException{
+		ByteBuffer b = ByteBuffer.allocate(records.size() * RECORD);
+		for(int i=0; i < records.size(); i++){
+			Entry e = records.get(i);
+			b.putLong(e.offset).putLong(e.length).putLong(e.time);
+			b.putInt(e.lines).putInt(e.flags);
+		}
+		b.flip();
+		FileChannel f = new RandomAccessFile(idx, "rw").getChannel();
+		try{
+			long pos = (long)first * RECORD;
+			while(b.hasRemaining())
+				pos += f.write(b, pos);
+		}finally{
+			f.close();
+		}
+	}
+
+	/**
+	 * Purpose: Finds the messages in part of the mailbox by their
+	 *          separators.  A body line "FROM:<" directly after a
+	 *          blank line is indistinguishable from a separator;
+	 *          the index written at delivery avoids this, so only
+	 *          unindexed mail is split this way.
+	 *
+	 * @param from Offset of the first unindexed message
+	 * @param to Mailbox length
+	 * @return List<Entry> the messages found
+	 */
+	private List<Entry> scan(long from, long to) throws IOException{
+		List<Entry> found = new ArrayList<Entry>();
+		long time = box.lastModified();
+		InputStream in = new BufferedInputStream(new FileInputStream(box), 64 * 1024);
+		try{
+			long skipped = 0;
+			while(skipped < from){
+				long n = in.skip(from - skipped);
+				if(n <= 0) throw new EOFException("mailbox shrank while scanning");
+				skipped += n;
+			}
+			long start = from, window = 0;
+			int lines = 0;
+			boolean lead = false;
+			for(long pos = from; pos < to; pos++){
+				int b = in.read();
+				if(b < 0) break;
+				if(pos == start) lead = b == '\n';
+				if(b == '\n') lines++;
+				window = (window << 8) | (b >= 'a' && b <= 'z' ? b - ('a' - 'A') : b);
+				if(window == SEPARATOR){
+					// the second '\n' starts the next message
+					long next = pos - 6;
+					found.add(entry(start, next - start, lines - 1 - (lead ? 1 : 0), time));
+					start = next;
+					lines = 1;
+					lead = true;
+				}
+			}
+			if(to > start)
+				found.add(entry(start, to - start, lines - (lead ? 1 : 0), time));
+		}finally{
+			in.close();
+		}
+		return found;
+	}
+
+	private static Entry entry(long offset, long length, int lines, long time){
+		Entry e = new Entry();
+		e.offset = offset;
+		e.length = length;
+		e.lines = lines;
+		e.time = time;
+		return e;
+	}
+}
@@ -0,0 +1,283 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * The MailMaintenance thread keeps mailbox files bounded in the
+ * background.  On each pass it visits the mailboxes of every root
+ * one at a time and:
+ *   - rotates a mailbox that has reached the size limit, holds
+ *     mail older than the age limit, or holds enough mail deleted
+ *     by POP3 to be worth compacting, into a new segment, so the
+ *     file receiving deliveries stays small;
+ *   - compacts segments in which deleted or expired mail has
+ *     reached a quarter of the file, and removes segments holding
+ *     nothing else.
+ * Segments are never appended to, so only the rotation itself (a
+ * rename) runs on the root's writer thread; compaction copies run
+ * here, paced to a byte rate, and pause whenever deliveries are
+ * waiting for the same disk.  The maildrop lock is held while a
+ * mailbox is worked on, so POP3 sessions and maintenance never see
+ * each other's changes half done.
+ *
+ * Maintenance is configured with system properties:
+ *   ksmtp.segmentMB          - rotate at this size (default 64,
+ *                              0 for no size limit)
+ *   ksmtp.segmentDays        - rotate mail older than this
+ *                              (default 0, no age limit)
+ *   ksmtp.expireDays         - remove mail older than this from
+ *                              segments (default 0, keep forever)
+ *   ksmtp.maintenanceKBps    - I/O budget (default 4096)
+ *   ksmtp.maintenanceSeconds - time between passes (default 600,
+ *                              0 disables maintenance)
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class MailMaintenance extends Thread implements MailIndex.Pacer{
+	// Wait while deliveries are queued for the disk, in milliseconds
+	private static long YIELD_WAIT = 50;
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+	private static boolean DEBUG = false;
+
+	private static MailMaintenance instance = null;
+
+	private MailStore store;
+	private long maxSize;
+	private long maxAge;
+	private long expireAge;
+	private long rate;
+	private long interval;
+	private volatile boolean stopping = false;
+
+	// Pacing of the current copy
+	private File root;
+	private long paceStart;
+	private long paceBytes;
+
+	// Totals reported by stats()
+	private volatile long passes = 0;
+	private volatile long rotated = 0;
+	private volatile long compacted = 0;
+	private volatile long expired = 0;
+	private volatile long reclaimed = 0;
+
+	/**
+	 * Purpose: Reads the maintenance system properties and starts
+	 *          the maintenance thread unless it is disabled.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions: none
+	 *
+	 * @param store The mail store to maintain
+	 * @return void
+	 * @see run
+	 */
+	static synchronized void configure(MailStore store){
+		long seconds = Long.getLong("ksmtp.maintenanceSeconds", 600).longValue();
+		if(seconds <= 0 || instance != null) return;
+		long mb = Long.getLong("ksmtp.segmentMB", 64).longValue();
+		long kbps = Long.getLong("ksmtp.maintenanceKBps", 4096).longValue();
+		MailMaintenance m = new MailMaintenance();
+		m.store = store;
+		m.maxSize = mb > 0 ? mb * 1024 * 1024 : Long.MAX_VALUE;
+		m.maxAge = Long.getLong("ksmtp.segmentDays", 0).longValue() * DAY;
+		m.expireAge = Long.getLong("ksmtp.expireDays", 0).longValue() * DAY;
+		m.rate = Math.max(1, kbps) * 1024;
+		m.interval = seconds * 1000;
+		m.setDaemon(true);
+		m.setPriority(MIN_PRIORITY);
+		m.setName("MailMaintenance");
+		m.start();
+		instance = m;
+	}
+
+	/**
+	 * Purpose: Stops the maintenance thread.  A compaction in
+	 *          progress is abandoned, leaving its file unchanged.
+	 *
+	 * @param timeout Maximum milliseconds to wait
+	 */
+	static void close(long timeout){
+		MailMaintenance m = instance;
+		if(m == null) return;
+		m.stopping = true;
+		m.interrupt();
+		try{
+			m.join(timeout);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Purpose: Describes the work done so far, for the admin
+	 *          STATUS command.
+	 *
+	 * @return String counters, or "" when not running
+	 */
+	static String stats(){
+		MailMaintenance m = instance;
+		if(m == null) return "";
+		return " maintenance passes=" + m.passes + " rotated=" + m.rotated
+			+ " compacted=" + m.compacted + " expired=" + m.expired
+			+ " reclaimed=" + m.reclaimed;
+	}
+
+	/**
+	 * Purpose: Runs a pass every interval until stopped.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions: none
+	 *
+	 * @return void
+	 * @see pass
+	 */
+	public void run(){
+		while(!stopping){
+			try{
+				Thread.sleep(interval);
+				pass();
+				passes++;
+			}catch(InterruptedException e){
+				break;
+			}catch(InterruptedIOException e){
+				break;
+			}catch(Exception e){
+				SmtpLog.error(0, null, "Mail maintenance error: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Purpose: Visits every mailbox owned by each root.  Mailboxes
+	 *          on the wrong root are left for Rebalance.
+	 */
+	private void pass() throws IOException{
+		File[] roots = store.getRoots();
+		for(int r=0; r < roots.length && !stopping; r++){
+			root = roots[r];
+			Iterator<String> users = users(root).iterator();
+			while(users.hasNext() && !stopping){
+				String user = users.next();
+				if(!store.owner(user).equals(root)) continue;
+				try{
+					maintain(user);
+				}catch(InterruptedIOException e){
+					throw e;
+				}catch(IOException e){
+					SmtpLog.error(0, null, "Maintenance of " + user + " failed: "
+							           + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Purpose: Lists the users with a mailbox or segments on a
+	 *          root.
+	 */
+	private static SortedSet<String> users(File root){
+		SortedSet<String> users = new TreeSet<String>();
+		File[] boxes = root.listFiles();
+		if(boxes != null)
+			for(int i=0; i < boxes.length; i++)
+				if(boxes[i].isFile() && !boxes[i].getName().startsWith("."))
+					users.add(boxes[i].getName());
+		File[] segs = MailStore.segmentDir(root).listFiles();
+		if(segs != null){
+			for(int i=0; i < segs.length; i++){
+				String name = segs[i].getName();
+				if(!name.startsWith(".") && MailStore.segmentNumber(name, null) >= 0)
+					users.add(name.substring(0, name.lastIndexOf('.')));
+			}
+		}
+		return users;
+	}
+
+	/**
+	 * Purpose: Rotates one user's mailbox if it is due, then
+	 *          compacts the user's segments that need it.  A
+	 *          maildrop open in a POP3 session is skipped until
+	 *          the next pass.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions: none
+	 *
+	 * @param user Mailbox owner
+	 * @throws IOException if a rotation or compaction fails
+	 * @return void
+	 * @see MailStore.rotate, MailIndex.compact
+	 */
+	private void maintain(String user) throws IOException{
+		if(!store.lock(user)) return;
+		try{
+			File seg = store.rotate(user, maxSize, maxAge);
+			if(seg != null){
+				rotated++;
+				SmtpLog.info("Rotated mailbox of " + user + " to " + seg);
+			}
+			File[] segs = store.segments(user);
+			for(int i=0; i < segs.length && !stopping; i++)
+				compact(segs[i]);
+		}finally{
+			store.unlock(user);
+		}
+	}
+
+	private void compact(File seg) throws IOException{
+		MailIndex index = new MailIndex(seg);
+		List<MailIndex.Entry> all = index.load();
+		final long cutoff = System.currentTimeMillis() - expireAge;
+		MailIndex.Filter keep = expireAge <= 0 ? null : new MailIndex.Filter(){
+			public boolean keep(MailIndex.Entry e){
+				return e.time >= cutoff;
+			}
+		};
+		if(!index.needsCompaction(all, keep)) return;
+		int old = 0;
+		for(int i=0; i < all.size(); i++)
+			if(!all.get(i).isDeleted() && keep != null && !keep.keep(all.get(i))) old++;
+		paceStart = System.currentTimeMillis();
+		paceBytes = 0;
+		long removed = index.compact(all, keep, this);
+		compacted++;
+		expired += old;
+		reclaimed += removed;
+		SmtpLog.info("Compacted " + seg + ": " + removed + " bytes removed, "
+				+ old + " messages expired");
+	}
+
+	/**
+	 * Purpose: Called by MailIndex.compact after each chunk.
+	 *          Sleeps to hold the copy to the configured rate and
+	 *          waits while deliveries are queued for this root.
+	 *
+	 * @param bytes Bytes just copied
+	 * @throws IOException to abandon the copy when stopping
+	 */
+	public void pace(long bytes) throws IOException{
+		paceBytes += bytes;
+		try{
+			long wait = paceStart + paceBytes * 1000 / rate - System.currentTimeMillis();
+			if(wait > 0) Thread.sleep(wait);
+			if(store.pending(root) > 0){
+				while(store.pending(root) > 0 && !stopping)
+					Thread.sleep(YIELD_WAIT);
+				// no catching up after giving way
+				paceStart = System.currentTimeMillis();
+				paceBytes = 0;
+			}
+		}catch(InterruptedException e){
+			throw new InterruptedIOException("maintenance stopped");
+		}
+		if(stopping) throw new InterruptedIOException("maintenance stopped");
+	}
+}
@@ -0,0 +1,599 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The MailStore class spreads user mailboxes over one or more
+ * storage roots, normally one per disk.  A mailbox is assigned to
+ * a root by consistent hashing of the recipient's local part, so
+ * adding a root only moves the mailboxes that now hash to it.
+ * Each root has its own writer thread, letting deliveries to
+ * different disks proceed in parallel.  Every mailbox has an
+ * offset index (see MailIndex) that the writer keeps current, so
+ * the retrieval service can open it without scanning.  Large or
+ * old mailboxes are rotated into segments kept in a ".segments"
+ * directory of the same root.
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class MailStore{
+	// Points placed on the hash ring for each root
+	private static int VIRTUAL_NODES = 160;
+	// Deliveries queued per root before senders wait
+	private static int QUEUE_SIZE = 1024;
+	private static boolean DEBUG = false;
+	// Directory of rotated mailbox segments in each root
+	static final String SEGMENTS = ".segments";
+
+	private File[] roots;
+	private TreeMap<Integer, Integer> ring = new TreeMap<Integer, Integer>();
+	private RootWriter[] writers;
+	// Maildrops held open by retrieval sessions
+	private Set<String> locked = new HashSet<String>();
+
+	/**
+	 * Purpose: The MailStore constructor builds the hash ring
+	 *          and starts one writer thread per root.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   Every root directory must already exist.
+	 *
+	 * @param dirs Storage roots, separated by File.pathSeparator
+	 * @return MailStore object
+	 * @see owner
+	 */
+	MailStore(String dirs){
+		this(dirs, true);
+	}
+
+	/**
+	 * Purpose: Builds the hash ring, optionally without starting
+	 *          writer threads (as used by the Rebalance tool).
+	 *
+	 * @param dirs Storage roots, separated by File.pathSeparator
+	 * @param start TRUE to start the writer threads
+	 */
+	MailStore(String dirs, boolean start){
+		String[] parts = dirs.split(File.pathSeparator);
+		List<File> list = new ArrayList<File>();
+		for(int i=0; i < parts.length; i++)
+			if(parts[i].length() > 0) list.add(new File(parts[i]));
+		roots = list.toArray(new File[0]);
+
+		// Points are derived from the root's path so that they do
+		// not move when other roots are added.
+		for(int r=0; r < roots.length; r++)
+			for(int v=0; v < VIRTUAL_NODES; v++)
+				ring.put(hash(roots[r].getPath() + "#" + v), r);
+
+		if(start){
+			writers = new RootWriter[roots.length];
+			for(int r=0; r < roots.length; r++)
+				writers[r] = new RootWriter(roots[r]);
+		}
+	}
+
+	/**
+	 * Purpose: Returns the storage roots, in configured order.
+	 *
+	 * @return File[] the roots
+	 */
+	File[] getRoots(){
+		return roots.clone();
+	}
+
+	/**
+	 * Purpose: Finds the root that owns a mailbox.
+	 *
+	 * @param user Recipient local part
+	 * @return File root directory for the mailbox
+	 */
+	File owner(String user){
+		Map.Entry<Integer, Integer> e = ring.ceilingEntry(hash(user));
+		if(e == null) e = ring.firstEntry();
+		return roots[e.getValue()];
+	}
+
+	/**
+	 * Purpose: Returns the file holding a user's mailbox.
+	 *
+	 * @param user Recipient local part
+	 * @return File the mailbox file (which may not exist yet)
+	 */
+	File mailbox(String user){
+		return new File(owner(user), user);
+	}
+
+	/**
+	 * Purpose: Appends a message to several mailboxes.  Each
+	 *          append is queued on the writer of the mailbox's
+	 *          root; the call returns once every append has been
+	 *          written.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions: none
+	 *
+	 * @param users Recipient local parts
+	 * @param head Envelope lines, written before the body
+	 * @param body Message body, shared by every append
+	 * @param lines Line ends in head and body, less the leading
+	 *              separator; recorded in the mailbox index
+	 * @return String[] per-user error messages, null entries for
+	 *                  users that were written successfully
+	 * @see RootWriter
+	 */
+	String[] deliver(String[] users, byte[] head, MessageSpool body, int lines){
+		Delivery[] jobs = new Delivery[users.length];
+		CountDownLatch done = new CountDownLatch(users.length);
+		for(int i=0; i < users.length; i++){
+			jobs[i] = new Delivery(users[i], head, body, lines, done);
+			writer(users[i]).submit(jobs[i]);
+		}
+		String[] errors = new String[users.length];
+		try{
+			done.await();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		for(int i=0; i < users.length; i++)
+			errors[i] = jobs[i].error;
+		return errors;
+	}
+
+	/**
+	 * Purpose: Takes the exclusive lock on a maildrop, as a POP3
+	 *          session must hold while it is open (RFC 1939).
+	 *
+	 * @param user Mailbox owner
+	 * @return boolean FALSE if the maildrop is already locked
+	 */
+	boolean lock(String user){
+		synchronized(locked){
+			return locked.add(user);
+		}
+	}
+
+	/**
+	 * Purpose: Releases a maildrop lock.
+	 *
+	 * @param user Mailbox owner
+	 */
+	void unlock(String user){
+		synchronized(locked){
+			locked.remove(user);
+		}
+	}
+
+	/**
+	 * Purpose: Reports whether a maildrop is locked.
+	 *
+	 * @param user Mailbox owner
+	 * @return boolean TRUE while a session holds the lock
+	 */
+	boolean isLocked(String user){
+		synchronized(locked){
+			return locked.contains(user);
+		}
+	}
+
+	/**
+	 * Purpose: Checks that a local part can name a mailbox file.
+	 *          Names starting with '.' are kept for the store's
+	 *          own files (indexes, segments, the relay spool), and
+	 *          a path separator would leave the root.
+	 *
+	 * @param user Recipient local part or POP3 user name
+	 * @return boolean TRUE if the name may be used
+	 */
+	static boolean isValidUser(String user){
+		return user.length() > 0 && !user.startsWith(".")
+			&& user.indexOf('/') < 0 && user.indexOf(File.separatorChar) < 0;
+	}
+
+	/**
+	 * Purpose: Returns the directory of rotated segments on a
+	 *          root.  A segment of user "bob" is named "bob.N",
+	 *          with N increasing as segments are rotated out.
+	 *
+	 * @param root A storage root
+	 * @return File the segment directory (which may not exist)
+	 */
+	static File segmentDir(File root){
+		return new File(root, SEGMENTS);
+	}
+
+	/**
+	 * Purpose: Returns a user's segments, oldest first.
+	 *
+	 * @param user Mailbox owner
+	 * @return File[] the segments, possibly none
+	 */
+	File[] segments(String user){
+		return segments(segmentDir(owner(user)), user);
+	}
+
+	static File[] segments(File dir, String user){
+		File[] all = dir.listFiles();
+		if(all == null) return new File[0];
+		TreeMap<Long, File> found = new TreeMap<Long, File>();
+		for(int i=0; i < all.length; i++){
+			long n = segmentNumber(all[i].getName(), user);
+			if(n >= 0) found.put(n, all[i]);
+		}
+		return found.values().toArray(new File[0]);
+	}
+
+	/**
+	 * Purpose: Parses a segment name.
+	 *
+	 * @param name File name in a segment directory
+	 * @param user Owner to match, or null for any
+	 * @return long the segment number, or -1 if the name is not
+	 *              a segment (of that user)
+	 */
+	static long segmentNumber(String name, String user){
+		int dot = name.lastIndexOf('.');
+		if(dot <= 0 || dot == name.length() - 1) return -1;
+		if(user != null && !name.substring(0, dot).equals(user)) return -1;
+		try{
+			return Long.parseLong(name.substring(dot + 1));
+		}catch(NumberFormatException e){
+			return -1;
+		}
+	}
+
+	/**
+	 * Purpose: Picks the name for a user's next segment in a
+	 *          segment directory.
+	 *
+	 * @param dir Segment directory
+	 * @param user Mailbox owner
+	 * @return File an unused segment name
+	 */
+	static File nextSegment(File dir, String user){
+		File[] existing = segments(dir, user);
+		long n = existing.length == 0 ? 1
+			: segmentNumber(existing[existing.length - 1].getName(), user) + 1;
+		return new File(dir, user + "." + n);
+	}
+
+	/**
+	 * Purpose: Reads the indexes of a user's segments and mailbox
+	 *          on its root writer, so that any repair of an index
+	 *          cannot race a delivery.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The caller holds the maildrop lock.
+	 *
+	 * @param user Mailbox owner
+	 * @throws IOException if an index cannot be loaded
+	 * @return List<MailIndex.Entry> the messages not deleted,
+	 *         oldest segment first
+	 * @see MailIndex.load
+	 */
+	List<MailIndex.Entry> open(String user) throws IOException{
+		final File box = mailbox(user);
+		final File[] segs = segments(user);
+		final List<MailIndex.Entry> live = new ArrayList<MailIndex.Entry>();
+		Job j = new Job(){
+			void run(File root) throws IOException{
+				for(int f=0; f <= segs.length; f++){
+					List<MailIndex.Entry> all =
+						new MailIndex(f < segs.length ? segs[f] : box).load();
+					for(int i=0; i < all.size(); i++)
+						if(!all.get(i).isDeleted()) live.add(all.get(i));
+				}
+			}
+		};
+		writer(user).submit(j);
+		j.await();
+		return live;
+	}
+
+	/**
+	 * Purpose: Flags messages as deleted.  The deleted mail is
+	 *          only skipped from then on; MailMaintenance reclaims
+	 *          the space later, at its own pace.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The caller holds the maildrop lock and has closed any
+	 *   channel it had open on the mailbox.
+	 *
+	 * @param user Mailbox owner
+	 * @param deleted Entries returned by open()
+	 * @throws IOException if an index cannot be updated
+	 * @see MailIndex.markDeleted
+	 */
+	void expunge(String user, List<MailIndex.Entry> deleted) throws IOException{
+		if(deleted.isEmpty()) return;
+		final Map<File, List<MailIndex.Entry>> byFile =
+			new LinkedHashMap<File, List<MailIndex.Entry>>();
+		for(int i=0; i < deleted.size(); i++){
+			MailIndex.Entry e = deleted.get(i);
+			List<MailIndex.Entry> l = byFile.get(e.file);
+			if(l == null){
+				l = new ArrayList<MailIndex.Entry>();
+				byFile.put(e.file, l);
+			}
+			l.add(e);
+		}
+		Job j = new Job(){
+			void run(File root) throws IOException{
+				for(Map.Entry<File, List<MailIndex.Entry>> f : byFile.entrySet())
+					new MailIndex(f.getKey()).markDeleted(f.getValue());
+			}
+		};
+		writer(user).submit(j);
+		j.await();
+	}
+
+	/**
+	 * Purpose: Moves a user's mailbox into a new segment if it
+	 *          has reached the size limit, holds mail older than
+	 *          the age limit, or holds enough deleted mail to be
+	 *          worth compacting (only segments are compacted, off
+	 *          the writer).  Runs on the root writer, so it cannot
+	 *          split a delivery; the mailbox and its index are
+	 *          only renamed.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The caller holds the maildrop lock.
+	 *
+	 * @param user Mailbox owner
+	 * @param maxSize Size limit in bytes
+	 * @param maxAge Age limit in milliseconds, 0 for none
+	 * @throws IOException if the rename fails
+	 * @return File the new segment, or null if not rotated
+	 * @see MaintenanceScheduler
+	 */
+	File rotate(String user, final long maxSize, final long maxAge) throws IOException{
+		final File box = mailbox(user);
+		final String name = user;
+		final File[] rotated = new File[1];
+		Job j = new Job(){
+			void run(File root) throws IOException{
+				long size = box.length();
+				if(size == 0) return;
+				MailIndex index = new MailIndex(box);
+				if(size < maxSize && (maxAge <= 0
+				   || index.oldest() > System.currentTimeMillis() - maxAge)
+				   && !index.needsCompaction(index.load(), null))
+					return;
+				File dir = segmentDir(root);
+				if(!dir.isDirectory() && !dir.mkdir())
+					throw new IOException("cannot create " + dir);
+				File seg = nextSegment(dir, name);
+				File idx = MailIndex.indexFile(box);
+				if(!box.renameTo(seg))
+					throw new IOException("cannot rename " + box + " to " + seg);
+				if(idx.exists() && !idx.renameTo(MailIndex.indexFile(seg)))
+					idx.delete();
+				rotated[0] = seg;
+			}
+		};
+		writer(user).submit(j);
+		j.await();
+		return rotated[0];
+	}
+
+	/**
+	 * Purpose: Returns the number of jobs waiting for a root's
+	 *          writer, so background work can give way to
+	 *          deliveries.
+	 *
+	 * @param root A storage root
+	 * @return int queued jobs
+	 */
+	int pending(File root){
+		for(int r=0; r < roots.length; r++)
+			if(roots[r].equals(root)) return writers[r].queue.size();
+		return 0;
+	}
+
+	private RootWriter writer(String user){
+		File root = owner(user);
+		for(int r=0; r < roots.length; r++)
+			if(roots[r] == root) return writers[r];
+		throw new IllegalStateException("no writer for " + root);
+	}
+
+	/**
+	 * Purpose: Stops the writer threads once their queued
+	 *          deliveries have been written.
+	 *
+	 * @param timeout Maximum milliseconds to wait per writer
+	 */
+	void close(long timeout){
+		if(writers == null) return;
+		for(int r=0; r < writers.length; r++)
+			writers[r].submit(RootWriter.STOP);
+		for(int r=0; r < writers.length; r++){
+			try{
+				writers[r].join(timeout);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Purpose: 32 bit FNV-1a with a final avalanche step, so that
+	 *          similar names land far apart on the ring.
+	 *
+	 * @param s String to hash
+	 * @return int hash value
+	 */
+	static int hash(String s){
+		int h = 0x811c9dc5;
+		for(int i=0; i < s.length(); i++){
+			h ^= s.charAt(i);
+			h *= 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Work queued for a root writer.  The submitting thread waits
+	 * on the latch and then reads the error, if any.
+	 */
+	private static abstract class Job{
+		CountDownLatch done = new CountDownLatch(1);
+		volatile String error = null;
+
+		abstract void run(File root) throws IOException;
+
+		/**
+		 * Purpose: Waits for the writer and rethrows its error.
+		 */
+		void await() throws IOException{
+			try{
+				done.await();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for mail store");
+			}
+			if(error != null) throw new IOException(error);
+		}
+	}
+
+	/**
+	 * A single mailbox append.  Deliveries of one message share a
+	 * latch so that deliver() waits once for all of them.
+	 */
+	private static class Delivery extends Job{
+		String user;
+		byte[] head;
+		MessageSpool body;
+		int lines;
+
+		Delivery(String u, byte[] h, MessageSpool b, int l, CountDownLatch d){
+			user = u;
+			head = h;
+			body = b;
+			lines = l;
+			done = d;
+		}
+
+		void run(File root) throws IOException{
+			if(DEBUG) SmtpLog.debug("MailStore appending to '" + user + "' in '" + root + "'");
+			File box = new File(root, user);
+			MailIndex.Entry e = new MailIndex.Entry();
+			FileChannel outFile = new FileOutputStream(box, true).getChannel();
+			boolean written = false;
+			e.offset = -1;
+			try{
+				e.offset = outFile.size();
+				ByteBuffer h = ByteBuffer.wrap(head);
+				while(h.hasRemaining()) outFile.write(h);
+				body.writeTo(outFile);
+				e.length = outFile.size() - e.offset;
+				written = true;
+			}finally{
+				// a partial message would run into the next one
+				if(!written && e.offset >= 0) cutBack(outFile, e.offset, box);
+				outFile.close();
+			}
+			e.time = System.currentTimeMillis();
+			e.lines = lines;
+			try{
+				new MailIndex(box).append(e);
+			}catch(IOException x){
+				// the mail is safe; load() will index it
+				SmtpLog.error(0, null, "Cannot index " + box + ": " + x.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Purpose: Removes the part of a failed append.  The sender
+	 *          is told to retry, so nothing of it may stay.
+	 *
+	 * @param f The mailbox, open for appending
+	 * @param offset Length of the mailbox before the append
+	 * @param box The mailbox file, for the error message
+	 */
+	private static void cutBack(FileChannel f, long offset, File box){
+		try{
+			if(f.size() > offset) f.truncate(offset);
+		}catch(IOException x){
+			SmtpLog.error(0, null, "Cannot remove a failed append from " + box
+					+ ": " + x.getMessage());
+		}
+	}
+
+	/**
+	 * The RootWriter thread performs every append for one root,
+	 * along with any index change or rewrite of its mailboxes, so
+	 * each disk sees a single sequential writer.
+	 */
+	private static class RootWriter extends Thread{
+		private static final Job STOP = new Job(){
+			void run(File root){}
+		};
+		private File root;
+		private BlockingQueue<Job> queue =
+			new ArrayBlockingQueue<Job>(QUEUE_SIZE);
+
+		RootWriter(File dir){
+			root = dir;
+			setDaemon(true);
+			setName("MailStore writer " + dir);
+			start();
+		}
+
+		void submit(Job j){
+			try{
+				queue.put(j);
+			}catch(InterruptedException e){
+				j.error = "interrupted";
+				j.done.countDown();
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void run(){
+			while(true){
+				Job j;
+				try{
+					j = queue.take();
+				}catch(InterruptedException e){
+					break;
+				}
+				if(j == STOP) break;
+				try{
+					j.run(root);
+				}catch(IOException e){
+					j.error = e.getMessage();
+				}catch(RuntimeException e){
+					j.error = e.toString();
+				}finally{
+					j.done.countDown();
+				}
+			}
+		}
+	}
+}
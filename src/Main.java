@@ -1,5 +1,8 @@
-//import java.io.*;
+import java.io.File;
+import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Properties;
 
 /**
  * Statement of purpose:
@@ -20,12 +23,21 @@ import java.net.*;
  * 	<br><b>input:</b><br>  
  * 			three parameters are expected to be passed in the 
  * 			following order: port to listen to, current domain
- *          name, and directory in which to place messages. The
- *          application is closed by entering any keystroke into
- *          the System.in console.
+ *          name, and directory in which to place messages.
+ *          Several directories (one per disk) may be given,
+ *          separated by the path separator; mailboxes are
+ *          spread across them by MailStore.  An optional fourth
+ *          parameter names a loopback admin port (0 for none)
+ *          and an optional fifth parameter a directory for the
+ *          rotating ksmtp.log.  The application is closed
+ *          gracefully by sending SHUTDOWN to the admin port or
+ *          by signalling the process (SIGTERM / Ctrl-C); open
+ *          sessions are given DRAIN_TIMEOUT to finish their
+ *          deliveries.
  * 	<br><b>output:</b><br> 
  * 			Any errors that are encountered will be written to the
- *          standard System.out console.
+ *          log file, or to the standard System.out console when
+ *          no log directory is given.
  * </p>
  * 
  * 
@@ -34,14 +46,25 @@ import java.net.*;
  * 	Save the files Main.java, SmtpConnection.java, and 
  * 	SmtpStateHandler.java.  Compile using the javac.exe
  * 	application.  Run the program from a command line by typing:
- * 	'java Main "portNumber" "domainName" "existingDirectory"'.
+ * 	'java Main "portNumber" "domainName" "existingDirectory"
+ * 	["adminPort"] ["logDirectory"]'.  STARTTLS is offered when
+ * 	a key store is given with -Djavax.net.ssl.keyStore=file and
+ * 	-Djavax.net.ssl.keyStorePassword=secret.  Mail for other
+ * 	domains is relayed to a smart host when started with
+ * 	-Dksmtp.relayDomains=a.com,b.org -Dksmtp.smartHost=host:port
+ * 	(see SmtpRelay).  Stored mail is served over POP3 when
+ * 	started with -Dksmtp.pop3Port=110; without
+ * 	-Dksmtp.pop3Passwords=file (user=password lines) any
+ * 	password is accepted and the port is bound to loopback only.
+ * 	Large mailboxes are rotated into segments and compacted in
+ * 	the background (see MailMaintenance for its settings).
  * 
  * 
  * Assumptions on expected data:
  * 
- * 	The directory provided must already be created prior to data
+ * 	The directories provided must already be created prior to data
  *  being saved.  User files will be created (or appended to if
- *  already present) within this directory.
+ *  already present) within these directories.
  * 
  * 
  * Test Platform:
@@ -57,30 +80,83 @@ import java.net.*;
 
 class Main{
 	private static boolean DEBUG = false;
+	// milliseconds allowed for in-flight deliveries on shutdown
+	private static long DRAIN_TIMEOUT = 30000;
 	/**
 	 * Purpose: 
 	 * @author Ken Molcsan
 	 * @version 1.0a
 	 * 
 	 * Preconditions: Must be passed three parameters consisting
-	 *                of 1) port, 2) domain, and 3) directory.
+	 *                of 1) port, 2) domain, and 3) directory,
+	 *                optionally followed by 4) admin port and
+	 *                5) log directory.
 	 *                Please note: the directory must already be
 	 *                created on the disk.
 	 * @param args Three arguments expected (port, domain, directory)
+	 *             and an optional admin port and log directory
 	 * @throws Exception
 	 * @see SmtpServer
 	 */
 	public static void main(String[] args){
 		try{
+			SmtpLog.open(args.length > 4 ? new File(args[4]) : null);
 			System.out.println("KsmtpServ Running\n"
 					+ "Port: " + args[0] + "\n"
 					+ "Domain: " + args[1] + "\n"
 					+ "Directory: " + args[2] + "\n"
-					+ "\nType Exit to close the application");
-			if(DEBUG) System.out.println(".. Starting Smtp Server");
-			new SmtpServer(args[1], args[2],
-					new ServerSocket(Integer.parseInt(args[0])));
-			if(DEBUG) System.out.println(".. Smtp Server Started");
+					+ (args.length > 3 ? "Admin Port: " + args[3] + "\n" : "")
+					+ (args.length > 4 ? "Log Directory: " + args[4] + "\n" : "")
+					+ "\nSend SHUTDOWN to the admin port or stop the process to close the application");
+			SmtpTls.configure();
+			// Bind every port before anything starts, so that a port
+			// in use stops the application before any mail is taken.
+			ServerSocket smtpSocket = listen("SMTP", null, Integer.parseInt(args[0]));
+			String pwFile = System.getProperty("ksmtp.pop3Passwords");
+			Properties passwords = pwFile == null ? null
+					: Pop3Server.loadPasswords(new File(pwFile));
+			int pop3Port = Integer.getInteger("ksmtp.pop3Port", 0).intValue();
+			ServerSocket pop3Socket = pop3Port <= 0 ? null : listen("POP3",
+					passwords == null ? InetAddress.getLoopbackAddress() : null, pop3Port);
+			int adminPort = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+			ServerSocket adminSocket = null;
+			if(adminPort > 0){
+				try{
+					adminSocket = AdminListener.bind(adminPort);
+				}catch(IOException e){
+					throw bindFailed("admin", adminPort, e);
+				}
+			}
+			if(DEBUG) SmtpLog.debug(".. Starting Smtp Server");
+			final MailStore store = new MailStore(args[2]);
+			SmtpRelay.configure(store, InetAddress.getLocalHost().getHostName());
+			MailMaintenance.configure(store);
+			final SmtpServer server = new SmtpServer(args[1], store, smtpSocket);
+			if(DEBUG) SmtpLog.debug(".. Smtp Server Started");
+			Pop3Server pop3Server = null;
+			if(pop3Socket != null){
+				SmtpLog.info("POP3 listening on port " + pop3Port
+						+ (passwords == null ? " (loopback, no passwords)" : ""));
+				pop3Server = new Pop3Server(store, pop3Socket, passwords);
+			}
+			final Pop3Server pop3 = pop3Server;
+			
+			// Signals and System.exit() both run the shutdown hooks,
+			// so every exit path drains the open sessions first.
+			Runtime.getRuntime().addShutdownHook(new Thread(){
+				public void run(){
+					SmtpLog.info("Draining open sessions");
+					if(!server.drain(DRAIN_TIMEOUT))
+						SmtpLog.info("Drain timed out, remaining sessions closed");
+					if(pop3 != null) pop3.close(DRAIN_TIMEOUT);
+					SmtpRelay.close(DRAIN_TIMEOUT);
+					MailMaintenance.close(DRAIN_TIMEOUT);
+					store.close(DRAIN_TIMEOUT);
+					SmtpLog.close(DRAIN_TIMEOUT);
+				}
+			});
+			if(adminSocket != null)
+				new AdminListener(server, adminSocket);
 			/*
 			BufferedReader command = new BufferedReader(new InputStreamReader(System.in));
 			System.out.println(".. Server Cmd Interpreter Started");
@@ -91,11 +167,42 @@ class Main{
 			command.close();
 			*/
 		}catch(Exception e){
-			System.out.println(".. An exception occurred in the main method: "
+			// exit non-zero so a service manager sees the failure
+			SmtpLog.error(0, null, "An exception occurred in the main method: "
 					+ e.getMessage());
+			SmtpLog.close(DRAIN_TIMEOUT);
+			System.exit(1);
 		}
 		// System.exit(0);
 	}
+
+	/**
+	 * Purpose: Binds a listening port.  Sessions do their I/O on
+	 *          the socket's channel, so the listener must come
+	 *          from a ServerSocketChannel.
+	 *
+	 * @param name Service name, for the error message
+	 * @param addr Local address, or null for every interface
+	 * @param port The port to listen to
+	 * @throws IOException if the port cannot be bound
+	 * @return ServerSocket the bound socket
+	 * @see SmtpServer, Pop3Server
+	 */
+	private static ServerSocket listen(String name, InetAddress addr, int port) throws IOException{
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		try{
+			listener.socket().bind(new InetSocketAddress(addr, port));
+		}catch(IOException e){
+			listener.close();
+			throw bindFailed(name, port, e);
+		}
+		return listener.socket();
+	}
+
+	private static IOException bindFailed(String name, int port, IOException e){
+		return new IOException("cannot listen on " + name + " port " + port
+				+ ": " + e.getMessage());
+	}
 }
 
 /*
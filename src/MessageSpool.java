@@ -0,0 +1,190 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The MessageSpool class holds the body of the message being
+ * received.  Bytes collect in memory; once SPILL_SIZE is reached
+ * the memory is written to a temporary file and reused as a buffer
+ * in front of it, so a large message never has to fit in the heap.
+ * Each session reuses one spool, and the storage writers read it
+ * concurrently once the message is complete.  If the spill file
+ * cannot be written the spool keeps the error, drops the rest of
+ * the message and lets the session read on to the end of DATA, so
+ * the client can be given a proper reply.
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class MessageSpool{
+	private static int SPILL_SIZE = 1024 * 1024;
+	// Memory kept between messages; larger arrays are dropped
+	private static int RETAIN_SIZE = 64 * 1024;
+
+	private byte[] mem = new byte[4096];
+	private int memUsed = 0;
+	private File file = null;
+	private RandomAccessFile raf = null;
+	// Bytes ahead of mem; null until the first spill
+	private FileChannel spill = null;
+	private long size = 0;
+	// Set when the spill file fails; cleared by reset()
+	private IOException error = null;
+
+	/**
+	 * Purpose: Appends bytes from a buffer, leaving the buffer's
+	 *          position unchanged.
+	 *
+	 * @param src Buffer holding the bytes
+	 * @param from Absolute index of the first byte
+	 * @param to Absolute index after the last byte
+	 */
+	void write(ByteBuffer src, int from, int to){
+		int len = to - from;
+		if(len <= 0 || error != null) return;
+		ByteBuffer d = src.duplicate();
+		d.limit(to).position(from);
+		if(memUsed + len > SPILL_SIZE){
+			try{
+				flushMem();
+				if(len > SPILL_SIZE){
+					while(d.hasRemaining()) spill.write(d);
+					size += len;
+					return;
+				}
+			}catch(IOException e){
+				fail(e);
+				return;
+			}
+		}
+		ensure(len);
+		d.get(mem, memUsed, len);
+		memUsed += len;
+		size += len;
+	}
+
+	/**
+	 * Purpose: Appends a single byte.
+	 *
+	 * @param b The byte
+	 */
+	void write(int b){
+		if(error != null) return;
+		if(memUsed + 1 > SPILL_SIZE){
+			try{
+				flushMem();
+			}catch(IOException e){
+				fail(e);
+				return;
+			}
+		}
+		ensure(1);
+		mem[memUsed++] = (byte)b;
+		size++;
+	}
+
+	/**
+	 * Purpose: Returns the error that stopped the spool taking
+	 *          bytes, if the spill file could not be written.
+	 *
+	 * @return IOException the failure, or null
+	 */
+	IOException getError(){
+		return error;
+	}
+
+	/**
+	 * Purpose: Returns the number of bytes held.
+	 *
+	 * @return long spool size
+	 */
+	long size(){
+		return size;
+	}
+
+	/**
+	 * Purpose: Copies the whole spool to a channel.  Spilled bytes
+	 *          are moved with transferTo, and the spool itself is
+	 *          not modified, so several threads may do this at
+	 *          once.
+	 *
+	 * @param dst Destination channel
+	 * @throws IOException if the copy fails
+	 */
+	void writeTo(FileChannel dst) throws IOException{
+		if(spill != null){
+			long pos = 0, end = size - memUsed;
+			while(pos < end)
+				pos += spill.transferTo(pos, end - pos, dst);
+		}
+		ByteBuffer b = ByteBuffer.wrap(mem, 0, memUsed);
+		while(b.hasRemaining()) dst.write(b);
+	}
+
+	/**
+	 * Purpose: Empties the spool for the next message, deleting
+	 *          any spill file.
+	 */
+	void reset(){
+		memUsed = 0;
+		size = 0;
+		error = null;
+		if(mem.length > RETAIN_SIZE) mem = new byte[4096];
+		dropSpill();
+	}
+
+	/**
+	 * Purpose: Records a spill failure and gives up the message
+	 *          held so far, freeing the memory and the disk space.
+	 */
+	private void fail(IOException e){
+		error = e;
+		memUsed = 0;
+		size = 0;
+		dropSpill();
+	}
+
+	private void dropSpill(){
+		if(spill != null){
+			try{
+				raf.close();
+			}catch(IOException e){
+				// the file is deleted below regardless
+			}
+			file.delete();
+			spill = null;
+			raf = null;
+			file = null;
+		}
+	}
+
+	private void ensure(int len){
+		if(memUsed + len <= mem.length) return;
+		byte[] bigger = new byte[Math.min(SPILL_SIZE, Math.max(mem.length * 2, memUsed + len))];
+		System.arraycopy(mem, 0, bigger, 0, memUsed);
+		mem = bigger;
+	}
+
+	/**
+	 * Purpose: Appends what is in memory to the spill file,
+	 *          creating it on first use.
+	 */
+	private void flushMem() throws IOException{
+		if(spill == null){
+			file = File.createTempFile("ksmtp", ".spool");
+			try{
+				raf = new RandomAccessFile(file, "rw");
+			}catch(IOException e){
+				file.delete();
+				file = null;
+				throw e;
+			}
+			spill = raf.getChannel();
+		}
+		ByteBuffer b = ByteBuffer.wrap(mem, 0, memUsed);
+		while(b.hasRemaining()) spill.write(b);
+		memUsed = 0;
+	}
+}
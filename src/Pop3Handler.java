@@ -0,0 +1,457 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * The Pop3Handler class runs one POP3 session (RFC 1939) against
+ * the MailStore.  Once the client has logged in, the maildrop is
+ * locked and its messages are taken from the indexes of the
+ * mailbox and its rotated segments, so STAT and LIST never read
+ * the mail itself and RETR reads only the requested message.  DELE
+ * only marks a message; the marks are written to the index at
+ * QUIT, and MailMaintenance reclaims the space in the background.
+ * A client that sends nothing (or stops reading) for IDLE_TIMEOUT
+ * is logged out without entering UPDATE, which releases the
+ * maildrop lock and deletes nothing (RFC 1939 section 3).
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class Pop3Handler extends Thread{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static boolean DEBUG = false;
+	// Inactivity autologout timer; RFC 1939 asks for at least
+	// 10 minutes
+	private static int IDLE_TIMEOUT = 10 * 60 * 1000;
+
+	// Private Data Members
+	private Pop3Server server;
+	private Socket client;
+	private MailStore store;
+	private SessionIO io = null;
+	private boolean quit = false;
+	private volatile boolean closing = false;
+	// TRUE while QUIT is being committed; abort() then waits
+	private volatile boolean updating = false;
+
+	// Logging context
+	private long sessionId;
+	private String clientIp;
+
+	// Maildrop state, set once logged in
+	private String user = null;
+	private boolean locked = false;
+	private List<MailIndex.Entry> messages = null;
+	private boolean[] deleted = null;
+	// Open mailbox and segment files, by file
+	private Map<File, FileChannel> files = new HashMap<File, FileChannel>();
+
+	private static byte[] REPLY_OK = line("+OK");
+
+	/**
+	 * Purpose: The Pop3Handler constructor starts the session
+	 *          thread.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The socket was accepted from a ServerSocketChannel.
+	 *
+	 * @param srv The server which owns this session
+	 * @param req The client connection
+	 * @param st The mail store
+	 * @return Pop3Handler thread
+	 * @see Pop3Server
+	 */
+	Pop3Handler(Pop3Server srv, Socket req, MailStore st){
+		server = srv;
+		client = req;
+		store = st;
+		sessionId = SmtpLog.newSession();
+		clientIp = req.getInetAddress().getHostAddress();
+		try{
+			req.setTcpNoDelay(true);
+			SocketChannel ch = req.getChannel();
+			if(ch == null)
+				throw new IOException("socket was not accepted from a ServerSocketChannel");
+			io = new SessionIO(ch);
+			io.setTimeout(IDLE_TIMEOUT);
+			server.sessionOpened(this);
+			this.start();
+		}catch(Exception e){
+			SmtpLog.error(sessionId, clientIp, "POP3 client i/o exception occurred: "
+					           + e.getMessage());
+			try{ client.close(); }catch(Exception f){
+				if(DEBUG) SmtpLog.debug(".. .. .. Failed to Close the POP3 connection");
+			}
+		}
+	}
+
+	/**
+	 * Purpose: Reads commands until QUIT, then commits the
+	 *          deletions if the session got as far as the
+	 *          TRANSACTION state.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions: none
+	 *
+	 * @return void
+	 * @see handleCommand
+	 */
+	public void run(){
+		reply("+OK KsmtpServ POP3 server ready");
+		while(!quit) handleCommand();
+		closeFiles();
+		if(locked){
+			if(!closing) update();
+			store.unlock(user);
+		}
+		try{
+			client.close();
+		}catch(Exception c){
+			SmtpLog.error(sessionId, clientIp, "Error closing POP3 connection: "
+					           + c.getMessage());
+		}
+		io.close();
+		server.sessionClosed(this);
+	}
+
+	/**
+	 * Purpose: Closes the connection from another thread.  A
+	 *          session committing its QUIT is left to finish.
+	 */
+	void abort(){
+		if(updating) return;
+		closing = true;
+		try{
+			client.close();
+		}catch(Exception c){
+			if(DEBUG) SmtpLog.debug(".. .. .. Failed to Close the POP3 connection");
+		}
+		io.abortWait();
+	}
+
+	/**
+	 * Purpose: Reads one command and dispatches it by state.
+	 */
+	private void handleCommand(){
+		String cmd;
+		try{
+			cmd = io.readLine();
+		}catch(SocketTimeoutException e){
+			SmtpLog.info(sessionId, clientIp, "POP3 session idle, closed: "
+					           + e.getMessage());
+			// an autologout does not enter the UPDATE state
+			closing = true;
+			cmd = null;
+		}catch(IOException e){
+			if(!closing)
+				SmtpLog.error(sessionId, clientIp, "Error reading POP3 command: "
+						           + e.getMessage());
+			cmd = null;
+		}
+		if(cmd == null){
+			// no QUIT, so nothing is deleted
+			closing = quit = true;
+			return;
+		}
+		String[] parts = cmd.trim().split(" +", 2);
+		String verb = parts[0].toUpperCase();
+		String arg = parts.length > 1 ? parts[1] : "";
+		if(verb.equals("QUIT")){
+			quit = true;
+			if(!locked) reply("+OK KsmtpServ POP3 server signing off");
+		}else if(verb.equals("NOOP")){
+			write(REPLY_OK);
+		}else if(!locked){
+			if(verb.equals("USER")) parseUser(arg);
+			else if(verb.equals("PASS")) parsePass(arg);
+			else reply("-ERR USER and PASS first");
+		}else if(verb.equals("STAT")){
+			parseStat();
+		}else if(verb.equals("LIST")){
+			parseList(arg);
+		}else if(verb.equals("RETR")){
+			parseRetr(arg);
+		}else if(verb.equals("DELE")){
+			parseDele(arg);
+		}else if(verb.equals("RSET")){
+			Arrays.fill(deleted, false);
+			reply("+OK maildrop has " + messages.size() + " messages");
+		}else{
+			reply("-ERR unrecognized command");
+		}
+	}
+
+	private void parseUser(String arg){
+		if(!MailStore.isValidUser(arg)){
+			reply("-ERR invalid user");
+			return;
+		}
+		user = arg;
+		reply("+OK send PASS");
+	}
+
+	/**
+	 * Purpose: Logs the user in, locks the maildrop and reads its
+	 *          index.
+	 */
+	private void parsePass(String arg){
+		if(user == null){
+			reply("-ERR USER first");
+			return;
+		}
+		if(!server.authenticate(user, arg)){
+			SmtpLog.info(sessionId, clientIp, "POP3 login failed for " + user);
+			user = null;
+			reply("-ERR invalid password");
+			return;
+		}
+		if(!store.lock(user)){
+			reply("-ERR maildrop already locked");
+			return;
+		}
+		locked = true;
+		try{
+			messages = store.open(user);
+			deleted = new boolean[messages.size()];
+		}catch(IOException e){
+			SmtpLog.error(sessionId, clientIp, "Cannot open maildrop of " + user + ": "
+					           + e.getMessage());
+			store.unlock(user);
+			locked = false;
+			user = null;
+			reply("-ERR maildrop unavailable");
+			return;
+		}
+		SmtpLog.info(sessionId, clientIp, "POP3 login " + user + ", "
+				           + messages.size() + " messages");
+		reply("+OK maildrop has " + messages.size() + " messages ("
+				+ totalSize() + " octets)");
+	}
+
+	private long totalSize(){
+		long total = 0;
+		for(int i=0; i < messages.size(); i++)
+			if(!deleted[i]) total += messages.get(i).wireSize();
+		return total;
+	}
+
+	private void parseStat(){
+		int n = 0;
+		for(int i=0; i < deleted.length; i++)
+			if(!deleted[i]) n++;
+		reply("+OK " + n + " " + totalSize());
+	}
+
+	private void parseList(String arg){
+		if(arg.length() > 0){
+			int m = message(arg);
+			if(m >= 0) reply("+OK " + (m + 1) + " " + messages.get(m).wireSize());
+			return;
+		}
+		StringBuilder sb = new StringBuilder("+OK scan listing follows\r\n");
+		for(int i=0; i < messages.size(); i++)
+			if(!deleted[i])
+				sb.append(i + 1).append(' ').append(messages.get(i).wireSize()).append("\r\n");
+		sb.append(".\r\n");
+		write(sb.toString().getBytes(UTF8));
+	}
+
+	private void parseDele(String arg){
+		int m = message(arg);
+		if(m < 0) return;
+		deleted[m] = true;
+		reply("+OK message " + (m + 1) + " deleted");
+	}
+
+	private void parseRetr(String arg){
+		int m = message(arg);
+		if(m < 0) return;
+		try{
+			send(messages.get(m));
+		}catch(IOException e){
+			if(!closing)
+				SmtpLog.error(sessionId, clientIp, "Error sending message: " + e.getMessage());
+			closing = quit = true;
+		}
+	}
+
+	/**
+	 * Purpose: Validates a message number.  The error reply has
+	 *          already been sent when -1 is returned.
+	 *
+	 * @return int zero based message index, or -1
+	 */
+	private int message(String arg){
+		int m;
+		try{
+			m = Integer.parseInt(arg.trim()) - 1;
+		}catch(NumberFormatException e){
+			reply("-ERR message number required");
+			return -1;
+		}
+		if(m < 0 || m >= messages.size()){
+			reply("-ERR no such message");
+			return -1;
+		}
+		if(deleted[m]){
+			reply("-ERR message " + (m + 1) + " already deleted");
+			return -1;
+		}
+		return m;
+	}
+
+	/**
+	 * Purpose: Sends one message.  The mailbox holds bare "\n"
+	 *          line ends and no dot-stuffing, which POP3 must add,
+	 *          so the message is read into one leased buffer and
+	 *          converted into another: runs between line ends are
+	 *          bulk copied and only the line ends and leading dots
+	 *          are touched.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The message is not deleted.
+	 *
+	 * @param e Index entry of the message
+	 * @throws IOException if the mailbox or connection fails
+	 * @return void
+	 * @see DataScanner.indexOfLF
+	 */
+	private void send(MailIndex.Entry e) throws IOException{
+		FileChannel box = files.get(e.file);
+		if(box == null){
+			box = new FileInputStream(e.file).getChannel();
+			files.put(e.file, box);
+		}
+		ByteBuffer src = BufferPool.lease();
+		ByteBuffer out = BufferPool.lease();
+		try{
+			put(out, ("+OK " + e.wireSize() + " octets\r\n").getBytes(UTF8));
+			// skip the "\n" separating it from the previous message
+			long pos = e.offset + 1, end = e.offset + e.length;
+			boolean lineStart = true;
+			while(pos < end){
+				src.clear();
+				src.limit((int)Math.min(src.capacity(), end - pos));
+				int n = box.read(src, pos);
+				if(n < 0) throw new EOFException("mailbox truncated");
+				pos += n;
+				src.flip();
+				while(src.hasRemaining()){
+					int p = src.position();
+					if(lineStart && src.get(p) == '.') put(out, (byte)'.');
+					int nl = DataScanner.indexOfLF(src, p, src.limit());
+					int runEnd = nl < 0 ? src.limit() : nl;
+					copy(out, src, p, runEnd);
+					if(nl >= 0){
+						put(out, (byte)'\r');
+						put(out, (byte)'\n');
+						src.position(nl + 1);
+						lineStart = true;
+					}else{
+						src.position(runEnd);
+						lineStart = false;
+					}
+				}
+			}
+			if(!lineStart){
+				put(out, (byte)'\r');
+				put(out, (byte)'\n');
+			}
+			put(out, (byte)'.');
+			put(out, (byte)'\r');
+			put(out, (byte)'\n');
+			io.send(out);
+		}finally{
+			BufferPool.release(src);
+			BufferPool.release(out);
+		}
+	}
+
+	private void copy(ByteBuffer out, ByteBuffer src, int from, int to) throws IOException{
+		while(from < to){
+			if(!out.hasRemaining()) io.send(out);
+			int k = Math.min(out.remaining(), to - from);
+			ByteBuffer d = src.duplicate();
+			d.limit(from + k).position(from);
+			out.put(d);
+			from += k;
+		}
+	}
+
+	private void put(ByteBuffer out, byte b) throws IOException{
+		if(!out.hasRemaining()) io.send(out);
+		out.put(b);
+	}
+
+	private void put(ByteBuffer out, byte[] b) throws IOException{
+		for(int i=0; i < b.length; i++) put(out, b[i]);
+	}
+
+	/**
+	 * Purpose: The UPDATE state: applies the deletions and sends
+	 *          the final reply.
+	 */
+	private void update(){
+		updating = true;
+		List<MailIndex.Entry> gone = new ArrayList<MailIndex.Entry>();
+		for(int i=0; i < deleted.length; i++)
+			if(deleted[i]) gone.add(messages.get(i));
+		try{
+			store.expunge(user, gone);
+			SmtpLog.info(sessionId, clientIp, "POP3 logout " + user + ", "
+					           + gone.size() + " deleted");
+			reply("+OK KsmtpServ POP3 server signing off ("
+					+ (messages.size() - gone.size()) + " messages left)");
+		}catch(IOException e){
+			SmtpLog.error(sessionId, clientIp, "Cannot update maildrop of " + user + ": "
+					           + e.getMessage());
+			reply("-ERR some deleted messages not removed");
+		}finally{
+			updating = false;
+		}
+	}
+
+	private void closeFiles(){
+		for(FileChannel f : files.values()){
+			try{
+				f.close();
+			}catch(IOException e){
+				if(DEBUG) SmtpLog.debug(".. .. .. Failed to close mailbox");
+			}
+		}
+		files.clear();
+	}
+
+	private void reply(String text){
+		write(line(text));
+	}
+
+	private void write(byte[] b){
+		try{
+			io.write(b);
+		}catch(IOException e){
+			if(!closing)
+				SmtpLog.error(sessionId, clientIp, "Error writing to POP3 client: "
+						           + e.getMessage());
+			closing = quit = true;
+		}
+	}
+
+	private static byte[] line(String text){
+		return (text + "\r\n").getBytes(UTF8);
+	}
+}
@@ -0,0 +1,157 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * The Pop3Server Class listens for POP3 connections and spawns a
+ * Pop3Handler for each one.  It gives local readers a way to take
+ * mail out of the MailStore without scanning the mailbox files.
+ *
+ * Passwords are read from a properties file of user=password
+ * lines.  Without one, any password is accepted, so Main then
+ * only binds the listener to the loopback address.
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class Pop3Server extends Thread{
+	// Private Data Members
+	private MailStore store;
+	private ServerSocket listener;
+	private Properties passwords;
+	private static boolean DEBUG = false;
+
+	private volatile boolean closing = false;
+	private Set<Pop3Handler> sessions =
+		Collections.synchronizedSet(new HashSet<Pop3Handler>());
+
+	/**
+	 * Purpose: The Pop3Server constructor starts the listener
+	 *          thread.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The socket must come from a ServerSocketChannel.
+	 *
+	 * @param st The mail store to serve
+	 * @param s Bound listening socket
+	 * @param pw Passwords by user, or null to accept any
+	 * @return Pop3Server object
+	 * @see Pop3Handler
+	 */
+	Pop3Server(MailStore st, ServerSocket s, Properties pw){
+		store = st;
+		listener = s;
+		passwords = pw;
+		setName("Pop3Server");
+		this.start();
+	}
+
+	/**
+	 * Purpose: Loads a password file.
+	 *
+	 * @param f Properties file of user=password lines
+	 * @throws IOException if the file cannot be read
+	 * @return Properties the passwords
+	 */
+	static Properties loadPasswords(File f) throws IOException{
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(f);
+		try{
+			p.load(in);
+		}finally{
+			in.close();
+		}
+		return p;
+	}
+
+	/**
+	 * Purpose: Accepts connections until close() is called.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions: none
+	 *
+	 * @return void
+	 * @see Pop3Handler
+	 */
+	public void run(){
+		while(!closing){
+			try{
+				Socket request = listener.accept();
+				if(DEBUG) SmtpLog.debug(".. .. POP3 connection received from: "
+						+ request.getInetAddress().getHostAddress());
+				new Pop3Handler(this, request, store);
+			}catch(Exception le){
+				if(closing) break;
+				SmtpLog.error(0, null, "An error occurred in the POP3 listener: " + le.getMessage());
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Purpose: Checks a user's password.
+	 *
+	 * @param user Mailbox owner
+	 * @param pass Password given by the client
+	 * @return boolean TRUE if the login may proceed
+	 */
+	boolean authenticate(String user, String pass){
+		if(passwords == null) return true;
+		String expected = passwords.getProperty(user);
+		return expected != null && expected.equals(pass);
+	}
+
+	/**
+	 * Purpose: Stops accepting connections and closes the open
+	 *          sessions.  A session closed this way has not
+	 *          entered the UPDATE state, so none of its deletions
+	 *          are applied (RFC 1939 section 6).  A session already
+	 *          committing its QUIT is waited for.
+	 *
+	 * @param timeout Maximum milliseconds to wait per session
+	 */
+	void close(long timeout){
+		closing = true;
+		try{
+			listener.close();
+		}catch(IOException e){
+			if(DEBUG) SmtpLog.debug(".. .. Failed to close the POP3 listener");
+		}
+		Pop3Handler[] open;
+		synchronized(sessions){
+			open = sessions.toArray(new Pop3Handler[0]);
+		}
+		for(int i=0; i < open.length; i++){
+			open[i].abort();
+			try{
+				open[i].join(timeout);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Purpose: Returns the number of sessions currently open.
+	 *
+	 * @return int number of live handlers
+	 */
+	int sessionCount(){
+		return sessions.size();
+	}
+
+	void sessionOpened(Pop3Handler h){
+		sessions.add(h);
+	}
+
+	void sessionClosed(Pop3Handler h){
+		sessions.remove(h);
+	}
+}
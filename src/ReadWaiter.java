@@ -0,0 +1,287 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * The ReadWaiter class lets a session thread block until its
+ * socket is readable (or writable) without holding a read buffer.
+ * One thread owns a Selector.  A session's channel stays in
+ * non-blocking mode and is registered once, on its first wait;
+ * each later wait only re-arms the key's interest ops, and the
+ * selector thread sets them back to zero before waking the
+ * session.  Only the selected keys are examined on a wakeup, so
+ * the cost of a wakeup does not grow with the number of idle
+ * sessions.  Waits of sessions that have a timeout are swept once
+ * a second, and are ended when their deadline has passed.
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class ReadWaiter extends Thread{
+	private static ReadWaiter instance = null;
+
+	private Selector selector;
+	// Tickets to arm, and tickets to let go without waiting for
+	// the channel; both guarded by pending
+	private final ArrayDeque<Ticket> pending = new ArrayDeque<Ticket>();
+	private final ArrayDeque<Ticket> released = new ArrayDeque<Ticket>();
+	// Armed tickets that have a timeout; selector thread only
+	private final HashSet<Ticket> timed = new HashSet<Ticket>();
+	// Milliseconds between sweeps of the timed waits
+	private static long SWEEP = 1000;
+
+	/**
+	 * A session's reusable place in the wait list.
+	 */
+	static class Ticket{
+		private SocketChannel channel;
+		// registered on the first wait; selector thread only
+		private SelectionKey key = null;
+		// TRUE while the key has interest ops set; selector
+		// thread only
+		private boolean armed = false;
+		private boolean ready = false;
+		// set by the session for the current wait; 0 once the
+		// session has stopped waiting
+		private int ops = 0;
+		private boolean interruptible = false;
+		// set once by interrupt(), and never cleared
+		private volatile boolean interrupted = false;
+		// milliseconds a wait may last, 0 for no limit
+		private int timeout = 0;
+		// when the current wait expires; selector thread only
+		private long deadline = 0;
+		// set by the selector thread when the deadline passed
+		private boolean timedOut = false;
+
+		Ticket(SocketChannel ch){
+			channel = ch;
+		}
+	}
+
+	private ReadWaiter() throws IOException{
+		selector = Selector.open();
+		setDaemon(true);
+		setName("ReadWaiter");
+		start();
+	}
+
+	private static synchronized ReadWaiter get() throws IOException{
+		if(instance == null) instance = new ReadWaiter();
+		return instance;
+	}
+
+	/**
+	 * Purpose: Limits how long each later wait on the ticket may
+	 *          last.
+	 *
+	 * @param w The session's ticket
+	 * @param millis Milliseconds, or 0 for no limit
+	 */
+	static void setTimeout(Ticket w, int millis){
+		w.timeout = millis;
+	}
+
+	/**
+	 * Purpose: Blocks the calling thread until the channel is
+	 *          ready for the given operations or has been closed,
+	 *          or, for an interruptible wait, until interrupt() is
+	 *          called.  A wakeup may find nothing to read or no
+	 *          room to write, so callers retry their I/O and wait
+	 *          again.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The channel is in non-blocking mode, and no other thread
+	 *   is waiting on the ticket.
+	 *
+	 * @param w The session's ticket
+	 * @param ops SelectionKey.OP_READ or SelectionKey.OP_WRITE
+	 * @param interruptible TRUE if interrupt() may end the wait
+	 * @throws InterruptedIOException if the wait was interrupted,
+	 *                                or the thread was
+	 * @throws SocketTimeoutException if the ticket's timeout
+	 *                                passed first
+	 * @throws IOException if the channel has been closed
+	 * @return void
+	 * @see SessionIO.fill
+	 */
+	static void await(Ticket w, int ops, boolean interruptible) throws IOException{
+		if(interruptible && w.interrupted)
+			throw new InterruptedIOException("wait interrupted");
+		if(!w.channel.isOpen())
+			throw new ClosedChannelException();
+		ReadWaiter rw = get();
+		synchronized(w){
+			w.ready = false;
+			w.timedOut = false;
+		}
+		synchronized(rw.pending){
+			w.ops = ops;
+			w.interruptible = interruptible;
+			rw.pending.add(w);
+		}
+		rw.selector.wakeup();
+		synchronized(w){
+			try{
+				while(!w.ready) w.wait();
+			}catch(InterruptedException e){
+				// disarm the key before leaving, or its readiness
+				// would end the session's next wait early
+				synchronized(rw.pending){
+					w.ops = 0;
+				}
+				wake(w);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("wait interrupted");
+			}
+		}
+		if(interruptible && w.interrupted)
+			throw new InterruptedIOException("wait interrupted");
+		if(w.timedOut)
+			throw new SocketTimeoutException("no activity for "
+					+ w.timeout / 1000 + "s");
+	}
+
+	/**
+	 * Purpose: Lets a session waiting in await() go, for a channel
+	 *          closed by another thread such as a drain abort.  A
+	 *          closed channel's key is cancelled without ever
+	 *          being selected, so the selector has to be told.
+	 *
+	 * @param w The session's ticket
+	 */
+	static void release(Ticket w){
+		wake(w);
+	}
+
+	/**
+	 * Purpose: Ends the session's current interruptible wait, and
+	 *          every later one.  Waits that are not interruptible
+	 *          carry on until the channel is ready.
+	 *
+	 * @param w The session's ticket
+	 */
+	static void interrupt(Ticket w){
+		w.interrupted = true;
+		wake(w);
+	}
+
+	private static void wake(Ticket w){
+		ReadWaiter rw = instance;
+		if(rw == null) return;
+		synchronized(rw.pending){
+			rw.released.add(w);
+		}
+		rw.selector.wakeup();
+	}
+
+	/**
+	 * Purpose: The selector loop.  Ready and released keys are
+	 *          disarmed, not cancelled, before their sessions are
+	 *          woken; a key is only cancelled when its channel is
+	 *          closed.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions: none
+	 *
+	 * @return void
+	 * @see await, release
+	 */
+	public void run(){
+		ArrayList<Ticket> done = new ArrayList<Ticket>();
+		ArrayList<Ticket> expired = new ArrayList<Ticket>();
+		long nextSweep = 0;
+		while(true){
+			try{
+				synchronized(pending){
+					while(!pending.isEmpty()){
+						Ticket w = pending.poll();
+						// the session gave up before it was armed
+						if(w.ops == 0) continue;
+						if(w.interruptible && w.interrupted){
+							done.add(w);
+							continue;
+						}
+						try{
+							if(w.key == null)
+								w.key = w.channel.register(selector, w.ops, w);
+							else
+								w.key.interestOps(w.ops);
+							w.armed = true;
+							if(w.timeout > 0){
+								w.deadline = System.currentTimeMillis() + w.timeout;
+								timed.add(w);
+							}
+						}catch(ClosedChannelException e){
+							done.add(w);
+						}catch(CancelledKeyException e){
+							// closed since it was registered
+							done.add(w);
+						}
+					}
+					while(!released.isEmpty()){
+						Ticket w = released.poll();
+						if(w.armed && (w.ops == 0 || !w.channel.isOpen()
+						   || (w.interruptible && w.interrupted)))
+							disarm(w, done);
+					}
+				}
+				// don't block with sessions already waiting to go
+				if(!done.isEmpty()) selector.selectNow();
+				else if(timed.isEmpty()) selector.select();
+				else selector.select(SWEEP);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()){
+					Ticket w = (Ticket)keys.next().attachment();
+					keys.remove();
+					if(w.armed) disarm(w, done);
+				}
+				long now = System.currentTimeMillis();
+				if(!timed.isEmpty() && now >= nextSweep){
+					for(Ticket w : timed)
+						if(w.deadline <= now) expired.add(w);
+					for(int i=0; i < expired.size(); i++){
+						Ticket w = expired.get(i);
+						w.timedOut = true;
+						disarm(w, done);
+					}
+					expired.clear();
+					nextSweep = now + SWEEP;
+				}
+				for(int i=0; i < done.size(); i++){
+					Ticket w = done.get(i);
+					synchronized(w){
+						w.ready = true;
+						w.notify();
+					}
+				}
+				done.clear();
+			}catch(Exception e){
+				SmtpLog.error(0, null, "ReadWaiter error: " + e.getMessage());
+			}
+		}
+	}
+
+	private void disarm(Ticket w, ArrayList<Ticket> done){
+		timed.remove(w);
+		try{
+			w.key.interestOps(0);
+		}catch(CancelledKeyException e){
+			// the channel was closed; the selector drops the key
+		}
+		w.armed = false;
+		done.add(w);
+	}
+}
@@ -0,0 +1,147 @@
+import java.io.*;
+import java.util.List;
+
+/**
+ * Statement of purpose:
+ * 
+ * 	The Rebalance tool moves mailboxes to the storage root that
+ *  owns them under the current list of roots.  Run it after
+ *  adding a root to the server's directory list; only the
+ *  mailboxes that now hash to the new root are moved.
+ * 
+ * 
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ * 
+ * 
+ * How to use:
+ * 
+ * 	Stop the server, then run:
+ * 	'java Rebalance "root1:root2:..."' using the same root list
+ *  (separated by the platform path separator) that the server
+ *  will be started with.  A mailbox that already exists on its
+ *  new root has the moved mail appended to it.  Rotated segments
+ *  are moved along with their mailboxes.
+ */
+
+class Rebalance{
+	/**
+	 * Purpose: Scans every root and moves misplaced mailboxes.
+	 * 
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 * 
+	 * Preconditions: The server must not be running against
+	 *                the roots being rebalanced.
+	 * @param args One argument expected (the root list)
+	 * @see MailStore.owner
+	 */
+	public static void main(String[] args){
+		if(args.length < 1){
+			System.out.println("usage: java Rebalance \"root1"
+					+ File.pathSeparator + "root2...\"");
+			return;
+		}
+		MailStore store = new MailStore(args[0], false);
+		File[] roots = store.getRoots();
+		int moved = 0, failed = 0;
+		for(int r=0; r < roots.length; r++){
+			File[] boxes = roots[r].listFiles();
+			if(boxes == null){
+				System.out.println("Cannot read root: " + roots[r]);
+				continue;
+			}
+			for(int i=0; i < boxes.length; i++){
+				File box = boxes[i];
+				if(!box.isFile() || box.getName().startsWith(".")) continue;
+				File target = store.mailbox(box.getName());
+				if(target.getParentFile().equals(roots[r])) continue;
+				try{
+					move(box, target);
+					System.out.println(box + " -> " + target);
+					moved++;
+				}catch(IOException e){
+					System.out.println("Failed to move " + box + ": " + e.getMessage());
+					failed++;
+				}
+			}
+			// rotated segments follow their owner, numbered after
+			// any segments already on the new root
+			File[] segs = MailStore.segmentDir(roots[r]).listFiles();
+			for(int i=0; segs != null && i < segs.length; i++){
+				File seg = segs[i];
+				String name = seg.getName();
+				if(!seg.isFile() || name.startsWith(".")
+				   || MailStore.segmentNumber(name, null) < 0) continue;
+				String user = name.substring(0, name.lastIndexOf('.'));
+				File owner = store.owner(user);
+				if(owner.equals(roots[r])) continue;
+				File dir = MailStore.segmentDir(owner);
+				try{
+					if(!dir.isDirectory() && !dir.mkdir())
+						throw new IOException("cannot create " + dir);
+					File target = MailStore.nextSegment(dir, user);
+					move(seg, target);
+					System.out.println(seg + " -> " + target);
+					moved++;
+				}catch(IOException e){
+					System.out.println("Failed to move " + seg + ": " + e.getMessage());
+					failed++;
+				}
+			}
+		}
+		System.out.println(moved + " mailboxes moved, " + failed + " failed");
+	}
+	
+	/**
+	 * Purpose: Moves one mailbox file.  A rename is tried first;
+	 *          across disks, or when the target already exists,
+	 *          the contents are appended to the target and the
+	 *          source is deleted only after a successful copy.
+	 *          The mailbox index moves with a renamed mailbox;
+	 *          after an append its records are added to the
+	 *          target's index, shifted past the mail already
+	 *          there, so delivery times and messages marked as
+	 *          deleted but not yet compacted are kept.
+	 * 
+	 * @param from Current mailbox file
+	 * @param to Mailbox file on the owning root
+	 * @throws IOException if the copy fails
+	 */
+	static void move(File from, File to) throws IOException{
+		File fromIdx = MailIndex.indexFile(from);
+		if(!to.exists() && from.renameTo(to)){
+			File toIdx = MailIndex.indexFile(to);
+			toIdx.delete();
+			if(fromIdx.exists() && !fromIdx.renameTo(toIdx)) fromIdx.delete();
+			return;
+		}
+		// a leftover index would not describe the new mailbox
+		if(!to.exists()) MailIndex.indexFile(to).delete();
+		// bring both indexes up to date first, so the target's
+		// ends where the copied mail will start
+		List<MailIndex.Entry> entries = new MailIndex(from).load();
+		MailIndex toIndex = new MailIndex(to);
+		toIndex.load();
+		long base = to.length();
+		InputStream in = new FileInputStream(from);
+		try{
+			OutputStream out = new FileOutputStream(to, true);
+			try{
+				byte[] buf = new byte[64 * 1024];
+				int n;
+				while((n = in.read(buf)) > 0)
+					out.write(buf, 0, n);
+				out.flush();
+			}finally{
+				out.close();
+			}
+		}finally{
+			in.close();
+		}
+		toIndex.appendMoved(entries, base);
+		if(!from.delete())
+			throw new IOException("copied but could not delete " + from);
+		fromIdx.delete();
+	}
+}
@@ -0,0 +1,429 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The SessionIO class performs the socket reads and writes for one
+ * SMTP session.  Buffers are leased from the BufferPool only while
+ * a read or a reply is in progress: when the session is waiting
+ * for its next command it parks in ReadWaiter and holds nothing.
+ * The channel is kept in non-blocking mode, so that its key stays
+ * registered with ReadWaiter for the whole session; a read or
+ * write that cannot make progress waits there.
+ * Replies are encoded straight into the leased direct buffer, and
+ * fixed replies are copied from precomputed byte arrays.  After
+ * STARTTLS the same paths run through the session's TlsConnection.
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class SessionIO{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Private Data Members
+	private SocketChannel channel;
+	private ReadWaiter.Ticket ticket;
+	private TlsConnection tls = null;
+	// Unread input, in drain mode; null when nothing is buffered
+	private ByteBuffer in = null;
+	// Bytes of the line being assembled, and the length of the
+	// last complete one
+	private byte[] line = new byte[256];
+	private int lineLength = 0;
+
+	/**
+	 * Purpose: The SessionIO constructor wraps the session's
+	 *          socket channel and switches it to non-blocking
+	 *          mode.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The channel is connected, and is used only through this
+	 *   object from now on.
+	 *
+	 * @param ch The session's socket channel
+	 * @throws IOException if the mode cannot be changed
+	 * @return SessionIO object
+	 * @see BufferPool
+	 */
+	SessionIO(SocketChannel ch) throws IOException{
+		channel = ch;
+		channel.configureBlocking(false);
+		ticket = new ReadWaiter.Ticket(ch);
+	}
+
+	/**
+	 * Purpose: Returns the underlying socket channel.
+	 *
+	 * @return SocketChannel the session's channel
+	 */
+	SocketChannel getChannel(){
+		return channel;
+	}
+
+	/**
+	 * Purpose: Limits how long any later read or write may wait
+	 *          for the client.
+	 *
+	 * @param millis Milliseconds, or 0 for no limit
+	 * @see ReadWaiter.setTimeout
+	 */
+	void setTimeout(int millis){
+		ReadWaiter.setTimeout(ticket, millis);
+	}
+
+	/**
+	 * Purpose: Waits until the channel is ready for the given
+	 *          operations.  Used by TlsConnection, which drives the
+	 *          same channel during its handshake.
+	 *
+	 * @param ops SelectionKey.OP_READ or SelectionKey.OP_WRITE
+	 * @throws IOException if the channel has been closed
+	 */
+	void await(int ops) throws IOException{
+		ReadWaiter.await(ticket, ops, false);
+	}
+
+	/**
+	 * Purpose: Routes all further I/O through TLS.  Any plaintext
+	 *          the client sent ahead of the handshake is discarded
+	 *          (RFC 3207 section 6).
+	 *
+	 * @param t Connection whose handshake has completed
+	 */
+	void startTls(TlsConnection t){
+		releaseInput();
+		tls = t;
+	}
+
+	/**
+	 * Purpose: Reads one line, without its CRLF (or bare LF).
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions: none
+	 *
+	 * @throws IOException if the connection fails
+	 * @return String the line, or null at end of stream
+	 * @see fill
+	 */
+	String readLine() throws IOException{
+		return readLine(false);
+	}
+
+	/**
+	 * Purpose: Reads one line, optionally giving up when
+	 *          interrupt() is called while waiting for input.
+	 *
+	 * @param interruptible TRUE if interrupt() may end the read
+	 * @throws InterruptedIOException if the read was interrupted
+	 * @throws IOException if the connection fails
+	 * @return String the line, or null at end of stream
+	 */
+	String readLine(boolean interruptible) throws IOException{
+		int n = readLineBytes(interruptible);
+		if(n < 0) return null;
+		return new String(line, 0, n, UTF8);
+	}
+
+	/**
+	 * Purpose: Reads one line into the internal line buffer, where
+	 *          lineStartsWith and lineWord can look at it without
+	 *          decoding the whole line.
+	 *
+	 * @param interruptible TRUE if interrupt() may end the read
+	 * @throws InterruptedIOException if the read was interrupted
+	 * @throws IOException if the connection fails
+	 * @return int length of the line, or -1 at end of stream
+	 */
+	int readLineBytes(boolean interruptible) throws IOException{
+		int n = 0;
+		lineLength = 0;
+		while(true){
+			if(in == null && !fill(interruptible)){
+				// end of stream; an unterminated last line counts
+				lineLength = n;
+				return n > 0 ? n : -1;
+			}
+			int start = in.position();
+			int end = in.limit();
+			int i = start;
+			while(i < end && in.get(i) != '\n') i++;
+			int len = i - start;
+			if(n + len > line.length){
+				byte[] bigger = new byte[Math.max(line.length * 2, n + len)];
+				System.arraycopy(line, 0, bigger, 0, n);
+				line = bigger;
+			}
+			in.get(line, n, len);
+			n += len;
+			if(i < end){
+				// consume the '\n'
+				in.get();
+				if(!in.hasRemaining()) releaseInput();
+				if(n > 0 && line[n - 1] == '\r') n--;
+				lineLength = n;
+				return n;
+			}
+			releaseInput();
+		}
+	}
+
+	/**
+	 * Purpose: Tests the start of the last line read by
+	 *          readLineBytes, ignoring ASCII case.
+	 *
+	 * @param word Upper case ASCII text, e.g. a command verb
+	 * @return boolean TRUE if the line starts with word
+	 */
+	boolean lineStartsWith(String word){
+		if(lineLength < word.length()) return false;
+		for(int i=0; i < word.length(); i++){
+			int b = line[i];
+			if(b >= 'a' && b <= 'z') b -= 'a' - 'A';
+			if(b != word.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Purpose: Decodes one space delimited word of the last line
+	 *          read by readLineBytes.
+	 *
+	 * @param from Offset of the word's first byte
+	 * @return String the word, empty if a space is at from, or
+	 *                null if the line ends before from
+	 */
+	String lineWord(int from){
+		if(from > lineLength) return null;
+		int end = from;
+		while(end < lineLength && line[end] != ' ') end++;
+		return new String(line, from, end - from, UTF8);
+	}
+
+	/**
+	 * Purpose: Reads the DATA section of a message.  The scanner
+	 *          works directly on the leased buffers, and anything
+	 *          the client pipelined after the terminator stays
+	 *          buffered for readLine.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The scanner and spool have been reset.
+	 *
+	 * @param scanner Finds the terminator and undoes dot-stuffing
+	 * @param spool Receives the message body; a spool failure is
+	 *                  left in the spool for the caller
+	 * @throws IOException if the connection fails
+	 * @return boolean FALSE if the stream ended before the
+	 *                 terminator
+	 * @see DataScanner
+	 */
+	boolean readData(DataScanner scanner, MessageSpool spool) throws IOException{
+		while(true){
+			if(in == null && !fill(false)) return false;
+			boolean done = scanner.scan(in, spool);
+			if(!in.hasRemaining()) releaseInput();
+			if(done) return true;
+		}
+	}
+
+	/**
+	 * Purpose: Leases a buffer and reads into it.  When nothing
+	 *          has arrived yet (or, under TLS, only part of a
+	 *          record) the buffer goes back to the pool and the
+	 *          session waits in ReadWaiter before trying again.
+	 *
+	 * @return boolean FALSE at end of stream
+	 */
+	private boolean fill(boolean interruptible) throws IOException{
+		while(true){
+			ByteBuffer b = BufferPool.lease();
+			int r;
+			try{
+				r = tls == null ? channel.read(b) : tls.read(b);
+			}catch(IOException e){
+				BufferPool.release(b);
+				throw e;
+			}
+			if(r > 0){
+				b.flip();
+				in = b;
+				return true;
+			}
+			BufferPool.release(b);
+			if(r < 0) return false;
+			ReadWaiter.await(ticket, SelectionKey.OP_READ, interruptible);
+		}
+	}
+
+	private void releaseInput(){
+		if(in != null){
+			BufferPool.release(in);
+			in = null;
+		}
+	}
+
+	/**
+	 * Purpose: Sends a fixed reply from a precomputed array.
+	 *
+	 * @param reply Complete reply, including CRLF
+	 * @throws IOException if the connection fails
+	 */
+	void write(byte[] reply) throws IOException{
+		ByteBuffer out = BufferPool.lease();
+		try{
+			int off = 0;
+			while(off < reply.length){
+				int n = Math.min(out.remaining(), reply.length - off);
+				out.put(reply, off, n);
+				off += n;
+				if(!out.hasRemaining()) flush(out);
+			}
+			flush(out);
+		}finally{
+			BufferPool.release(out);
+		}
+	}
+
+	/**
+	 * Purpose: Encodes and sends a reply of one or more lines
+	 *          sharing a code.  All lines but the last are marked
+	 *          as continuations.
+	 *
+	 * @param code Status code
+	 * @param lines Reply text, one entry per line
+	 * @throws IOException if the connection fails
+	 */
+	void reply(int code, String[] lines) throws IOException{
+		ByteBuffer out = BufferPool.lease();
+		try{
+			for(int l=0; l < lines.length; l++){
+				putCode(out, code, l < lines.length - 1 ? '-' : ' ');
+				putText(out, lines[l]);
+				put(out, (byte)'\r');
+				put(out, (byte)'\n');
+			}
+			flush(out);
+		}finally{
+			BufferPool.release(out);
+		}
+	}
+
+	/**
+	 * Purpose: Encodes and sends a single line reply.
+	 *
+	 * @param code Status code
+	 * @param text Reply text
+	 * @throws IOException if the connection fails
+	 */
+	void reply(int code, String text) throws IOException{
+		ByteBuffer out = BufferPool.lease();
+		try{
+			putCode(out, code, ' ');
+			putText(out, text);
+			put(out, (byte)'\r');
+			put(out, (byte)'\n');
+			flush(out);
+		}finally{
+			BufferPool.release(out);
+		}
+	}
+
+	/**
+	 * Purpose: Builds the bytes of a fixed reply once, for use
+	 *          with write(byte[]).
+	 *
+	 * @param code Status code
+	 * @param text Reply text
+	 * @return byte[] the complete reply line
+	 */
+	static byte[] fixedReply(int code, String text){
+		return (code + " " + text + "\r\n").getBytes(UTF8);
+	}
+
+	private void putCode(ByteBuffer out, int code, char sep) throws IOException{
+		put(out, (byte)('0' + code / 100 % 10));
+		put(out, (byte)('0' + code / 10 % 10));
+		put(out, (byte)('0' + code % 10));
+		put(out, (byte)sep);
+	}
+
+	/**
+	 * Purpose: Copies reply text into the buffer.  Replies are
+	 *          ASCII (RFC 5321 section 4.2); anything else is
+	 *          sent as '?'.
+	 */
+	private void putText(ByteBuffer out, String text) throws IOException{
+		for(int i=0; i < text.length(); i++){
+			char c = text.charAt(i);
+			put(out, c < 0x80 ? (byte)c : (byte)'?');
+		}
+	}
+
+	private void put(ByteBuffer out, byte b) throws IOException{
+		if(!out.hasRemaining()) flush(out);
+		out.put(b);
+	}
+
+	/**
+	 * Purpose: Sends a buffer filled by the caller, for output
+	 *          that is not a reply line.
+	 *
+	 * @param out Buffer in fill mode; cleared once sent
+	 * @throws IOException if the connection fails
+	 */
+	void send(ByteBuffer out) throws IOException{
+		flush(out);
+	}
+
+	/**
+	 * Purpose: Writes out everything in the buffer and clears it
+	 *          for reuse.
+	 */
+	private void flush(ByteBuffer out) throws IOException{
+		out.flip();
+		if(tls != null){
+			tls.write(out);
+		}else{
+			while(out.hasRemaining())
+				if(channel.write(out) == 0)
+					ReadWaiter.await(ticket, SelectionKey.OP_WRITE, false);
+		}
+		out.clear();
+	}
+
+	/**
+	 * Purpose: Wakes the session if it is waiting on its channel.
+	 *          Called by another thread after closing the
+	 *          session's connection.
+	 */
+	void abortWait(){
+		ReadWaiter.release(ticket);
+	}
+
+	/**
+	 * Purpose: Ends the session's current and future
+	 *          interruptible reads.  Called by another thread.
+	 */
+	void interrupt(){
+		ReadWaiter.interrupt(ticket);
+	}
+
+	/**
+	 * Purpose: Returns any leased buffers.  Called when the
+	 *          session ends.
+	 */
+	void close(){
+		releaseInput();
+	}
+}
@@ -0,0 +1,300 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * The SmtpClient class is an outbound SMTP connection used by the
+ * relay to forward mail to the smart host.  A connection is kept
+ * open and reused for many messages; when the smart host offers
+ * PIPELINING (RFC 2920) the envelope commands for a message are
+ * sent in a single write and their replies read back together.
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class SmtpClient{
+	// Private Data Members
+	private Socket sock;
+	private BufferedReader input;
+	private OutputStream output;
+	private boolean pipelining = false;
+	private String lastReply = "";
+	private long lastUsed;
+	private int messages = 0;
+
+	// Timeouts in milliseconds
+	private static int CONNECT_TIMEOUT = 30000;
+	private static int READ_TIMEOUT = 300000;
+	// Bytes of the body read from the spool at a time
+	private static int BODY_CHUNK = 16 * 1024;
+	private static final byte[] CRLF = {'\r', '\n'};
+
+	/**
+	 * Purpose: The SmtpClient constructor connects to the smart
+	 *          host and introduces itself, preferring EHLO and
+	 *          falling back to HELO.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   none
+	 *
+	 * @param host Smart host name or address
+	 * @param port Smart host port
+	 * @param heloName Name to announce in EHLO/HELO
+	 * @throws IOException if the host cannot be reached or
+	 *                     refuses the session
+	 * @return SmtpClient object
+	 * @see SmtpRelay
+	 */
+	SmtpClient(String host, int port, String heloName) throws IOException{
+		sock = new Socket();
+		try{
+			sock.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			sock.setSoTimeout(READ_TIMEOUT);
+			// replies are read before the next write, so Nagle
+			// would only add delayed-ACK stalls
+			sock.setTcpNoDelay(true);
+			input = new BufferedReader(
+					new InputStreamReader(sock.getInputStream(), "UTF-8"));
+			output = new BufferedOutputStream(sock.getOutputStream());
+
+			expect(readReply(), 220);
+			send("EHLO " + heloName);
+			int code = readReply();
+			if(code == 250){
+				pipelining = lastReply.toUpperCase().indexOf("PIPELINING") >= 0;
+			}else{
+				send("HELO " + heloName);
+				expect(readReply(), 250);
+			}
+		}catch(IOException e){
+			close();
+			throw e;
+		}
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Purpose: Sends one message.  The reply code for each
+	 *          recipient is returned: the MAIL or RCPT reply when
+	 *          that refused the recipient, otherwise the reply to
+	 *          DATA or to the end of the message.  The text of the
+	 *          same reply is put in replies.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The connection is between transactions.
+	 *
+	 * @param from Sender address, without angle brackets
+	 * @param rcpts Recipient addresses, without angle brackets
+	 * @param body Spool file holding the message lines, ended by
+	 *             "\n" and not dot-stuffed
+	 * @param offset Where the message starts in the file
+	 * @param replies Filled with the reply text for each recipient;
+	 *                as long as rcpts
+	 * @throws IOException if the connection or file fails; the
+	 *                     message must then be treated as not
+	 *                     delivered
+	 * @return int[] reply code per recipient
+	 * @see SmtpRelay
+	 */
+	int[] sendMessage(String from, List<String> rcpts, FileChannel body, long offset,
+			String[] replies) throws IOException{
+		int[] codes = new int[rcpts.size()];
+		int accepted = 0;
+		int mailCode, dataCode;
+		String mailReply, dataReply;
+
+		if(pipelining){
+			// MAIL, every RCPT and DATA go out in one write
+			StringBuilder cmds = new StringBuilder();
+			cmds.append("MAIL FROM:<").append(from).append(">\r\n");
+			for(int i=0; i < codes.length; i++)
+				cmds.append("RCPT TO:<").append(rcpts.get(i)).append(">\r\n");
+			cmds.append("DATA\r\n");
+			write(cmds.toString());
+			output.flush();
+			mailCode = readReply();
+			mailReply = lastReply;
+			for(int i=0; i < codes.length; i++){
+				codes[i] = readReply();
+				replies[i] = lastReply;
+				if(mailCode == 250 && codes[i] / 100 == 2) accepted++;
+				else if(mailCode != 250){
+					codes[i] = mailCode;
+					replies[i] = mailReply;
+				}
+			}
+			dataCode = readReply();
+			dataReply = lastReply;
+		}else{
+			send("MAIL FROM:<" + from + ">");
+			mailCode = readReply();
+			if(mailCode != 250){
+				for(int i=0; i < codes.length; i++){
+					codes[i] = mailCode;
+					replies[i] = lastReply;
+				}
+				return codes;
+			}
+			for(int i=0; i < codes.length; i++){
+				send("RCPT TO:<" + rcpts.get(i) + ">");
+				codes[i] = readReply();
+				replies[i] = lastReply;
+				if(codes[i] / 100 == 2) accepted++;
+			}
+			if(accepted == 0){
+				send("RSET");
+				readReply();
+				return codes;
+			}
+			send("DATA");
+			dataCode = readReply();
+			dataReply = lastReply;
+		}
+
+		if(dataCode == 354){
+			writeBody(body, offset);
+			write(".\r\n");
+			output.flush();
+			int endCode = readReply();
+			for(int i=0; i < codes.length; i++){
+				if(codes[i] / 100 == 2){
+					codes[i] = endCode;
+					replies[i] = lastReply;
+				}
+			}
+		}else{
+			// the DATA refusal applies to every accepted recipient
+			for(int i=0; i < codes.length; i++){
+				if(codes[i] / 100 == 2){
+					codes[i] = dataCode;
+					replies[i] = dataReply;
+				}
+			}
+			if(mailCode == 250){
+				send("RSET");
+				readReply();
+			}
+		}
+		messages++;
+		lastUsed = System.currentTimeMillis();
+		return codes;
+	}
+
+	/**
+	 * Purpose: Returns the time this connection was last used.
+	 *
+	 * @return long milliseconds since the epoch
+	 */
+	long getLastUsed(){
+		return lastUsed;
+	}
+
+	/**
+	 * Purpose: Returns the number of messages sent on this
+	 *          connection.
+	 *
+	 * @return int message count
+	 */
+	int getMessageCount(){
+		return messages;
+	}
+
+	/**
+	 * Purpose: Ends the session politely and closes the socket.
+	 */
+	void quit(){
+		try{
+			send("QUIT");
+			readReply();
+		}catch(IOException e){
+			// closing anyway
+		}
+		close();
+	}
+
+	/**
+	 * Purpose: Closes the socket without a QUIT.
+	 */
+	void close(){
+		try{
+			sock.close();
+		}catch(IOException e){
+			// nothing more to do
+		}
+	}
+
+	/**
+	 * Purpose: Copies the message body from the spool file as
+	 *          raw bytes, converting line ends to CRLF and doubling
+	 *          a leading '.' on any line.  A last line without a
+	 *          line end, as left by older spool files, is ended.
+	 */
+	private void writeBody(FileChannel body, long pos) throws IOException{
+		ByteBuffer buf = ByteBuffer.allocate(BODY_CHUNK);
+		byte[] b = buf.array();
+		boolean lineStart = true;
+		int n;
+		while((n = body.read(buf, pos)) > 0){
+			pos += n;
+			int run = 0;
+			for(int i=0; i < n; i++){
+				if(lineStart && b[i] == '.') output.write('.');
+				lineStart = b[i] == '\n';
+				if(lineStart){
+					output.write(b, run, i - run);
+					output.write(CRLF);
+					run = i + 1;
+				}
+			}
+			output.write(b, run, n - run);
+			buf.clear();
+		}
+		if(!lineStart) output.write(CRLF);
+	}
+
+	private void send(String cmd) throws IOException{
+		write(cmd);
+		write("\r\n");
+		output.flush();
+	}
+
+	private void write(String s) throws IOException{
+		output.write(s.getBytes("UTF-8"));
+	}
+
+	/**
+	 * Purpose: Reads a possibly multi-line reply.
+	 *
+	 * @return int the reply code
+	 */
+	private int readReply() throws IOException{
+		StringBuilder text = new StringBuilder();
+		String line;
+		do{
+			line = input.readLine();
+			if(line == null) throw new EOFException("smart host closed the connection");
+			if(line.length() < 3) throw new IOException("malformed reply: " + line);
+			text.append(line).append('\n');
+		}while(line.length() > 3 && line.charAt(3) == '-');
+		lastReply = text.toString().trim();
+		try{
+			return Integer.parseInt(line.substring(0, 3));
+		}catch(NumberFormatException e){
+			throw new IOException("malformed reply: " + line);
+		}
+	}
+
+	private void expect(int code, int wanted) throws IOException{
+		if(code != wanted) throw new IOException("unexpected reply: " + lastReply);
+	}
+}
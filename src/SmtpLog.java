@@ -0,0 +1,359 @@
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * The SmtpLog class is an asynchronous logger for the server.
+ * Session threads record events into a fixed size ring buffer of
+ * preallocated slots and return immediately; a single writer
+ * thread formats the events and writes them to a rotating log
+ * file (or to System.out when no log directory was given).  When
+ * the ring is full new events are dropped and counted, so logging
+ * never blocks the SMTP path.
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class SmtpLog extends Thread{
+	// Event levels
+	static final int INFO = 0;
+	static final int ERROR = 1;
+	static final int DEBUG = 2;
+	private static final String[] LEVELS = {"INFO ", "ERROR", "DEBUG"};
+
+	// Ring and file sizing
+	private static int CAPACITY = 8192;
+	private static long MAX_FILE_SIZE = 16L * 1024 * 1024;
+	private static int KEEP_FILES = 5;
+	private static String FILE_NAME = "ksmtp.log";
+
+	private static SmtpLog instance = null;
+	// Last session id handed out, for SMTP and POP3 alike
+	private static long sessionCounter = 0;
+
+	/**
+	 * A reusable ring slot.  Only the fields relevant to the
+	 * event are meaningful; the rest keep their defaults.
+	 */
+	private static class Event{
+		long time;
+		int level;
+		long session;
+		String client;
+		String command;
+		int code;
+		long bytes;
+		long millis;
+		String text;
+	}
+
+	// Ring buffer, guarded by the ring array itself
+	private final Event[] ring = new Event[CAPACITY];
+	private int head = 0;
+	private int count = 0;
+	private long dropped = 0;
+	private long droppedReported = 0;
+	private boolean closed = false;
+
+	// Writer thread state
+	private File logDir;
+	private File logFile;
+	private Writer out;
+	private long written = 0;
+	private StringBuilder line = new StringBuilder(256);
+	private SimpleDateFormat stamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+	/**
+	 * Purpose: The SmtpLog constructor preallocates the ring
+	 *          slots and starts the writer thread.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The directory, when given, must already exist.
+	 *
+	 * @param dir Directory for the rotating log file, or null
+	 *            to write to System.out.
+	 * @return SmtpLog thread
+	 * @see nothing
+	 */
+	private SmtpLog(File dir){
+		for(int i=0; i < ring.length; i++)
+			ring[i] = new Event();
+		logDir = dir;
+		openLog();
+		setDaemon(true);
+		setName("SmtpLog writer");
+		start();
+	}
+
+	/**
+	 * Purpose: Starts the logger.  Must be called before the
+	 *          first event to log to a file; otherwise the first
+	 *          event starts a logger on System.out.
+	 *
+	 * @param dir Directory for the log file, or null
+	 */
+	static synchronized void open(File dir){
+		if(instance == null) instance = new SmtpLog(dir);
+	}
+
+	private static SmtpLog get(){
+		SmtpLog l = instance;
+		if(l == null){
+			synchronized(SmtpLog.class){
+				if(instance == null) instance = new SmtpLog(null);
+				l = instance;
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * Purpose: Hands out the id of a new session.  SMTP and POP3
+	 *          sessions share the sequence, so an id names one
+	 *          session in the log.
+	 *
+	 * @return long the id, never 0
+	 */
+	static synchronized long newSession(){
+		return ++sessionCounter;
+	}
+
+	/**
+	 * Purpose: Records a completed SMTP command.
+	 *
+	 * @param session Session id of the request handler
+	 * @param client Client IP address
+	 * @param command Command verb
+	 * @param code Reply code sent to the client
+	 * @param bytes Message bytes received (DATA only)
+	 * @param millis Time taken to handle the command
+	 */
+	static void command(long session, String client, String command,
+			int code, long bytes, long millis){
+		get().publish(INFO, session, client, command, code, bytes, millis, null);
+	}
+
+	/**
+	 * Purpose: Records an error, optionally tied to a session.
+	 *
+	 * @param session Session id, or 0 when not in a session
+	 * @param client Client IP address, or null
+	 * @param text Description of the error
+	 */
+	static void error(long session, String client, String text){
+		get().publish(ERROR, session, client, null, 0, 0, 0, text);
+	}
+
+	/**
+	 * Purpose: Records a free-form informational message.
+	 *
+	 * @param text The message
+	 */
+	static void info(String text){
+		get().publish(INFO, 0, null, null, 0, 0, 0, text);
+	}
+
+	/**
+	 * Purpose: Records an informational message for a session.
+	 *
+	 * @param session Session id of the request handler
+	 * @param client Client IP address
+	 * @param text The message
+	 */
+	static void info(long session, String client, String text){
+		get().publish(INFO, session, client, null, 0, 0, 0, text);
+	}
+
+	/**
+	 * Purpose: Records a debug trace message.
+	 *
+	 * @param text The message
+	 */
+	static void debug(String text){
+		get().publish(DEBUG, 0, null, null, 0, 0, 0, text);
+	}
+
+	/**
+	 * Purpose: Returns the number of events dropped because the
+	 *          ring was full.
+	 *
+	 * @return long dropped event count
+	 */
+	static long droppedCount(){
+		SmtpLog l = instance;
+		if(l == null) return 0;
+		synchronized(l.ring){
+			return l.dropped;
+		}
+	}
+
+	/**
+	 * Purpose: Writes out everything still queued and closes the
+	 *          log file.  Events published afterwards are dropped.
+	 *
+	 * @param timeout Maximum milliseconds to wait for the writer
+	 */
+	static void close(long timeout){
+		SmtpLog l = instance;
+		if(l == null) return;
+		synchronized(l.ring){
+			l.closed = true;
+			l.ring.notify();
+		}
+		try{
+			l.join(timeout);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Purpose: Copies an event into the next free slot.  Never
+	 *          blocks on I/O; if the ring is full the event is
+	 *          counted as dropped.
+	 */
+	private void publish(int level, long session, String client, String command,
+			int code, long bytes, long millis, String text){
+		synchronized(ring){
+			if(count == ring.length || closed){
+				dropped++;
+				return;
+			}
+			Event e = ring[(head + count) % ring.length];
+			e.time = System.currentTimeMillis();
+			e.level = level;
+			e.session = session;
+			e.client = client;
+			e.command = command;
+			e.code = code;
+			e.bytes = bytes;
+			e.millis = millis;
+			e.text = text;
+			if(count++ == 0) ring.notify();
+		}
+	}
+
+	/**
+	 * Purpose: The writer loop.  Takes the filled part of the
+	 *          ring as a batch, formats it without holding the
+	 *          lock, then releases the slots back to producers.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions: none
+	 *
+	 * @return void
+	 * @see publish
+	 */
+	public void run(){
+		while(true){
+			int first, n;
+			long lost;
+			boolean done;
+			synchronized(ring){
+				while(count == 0 && !closed){
+					try{
+						ring.wait();
+					}catch(InterruptedException e){
+						closed = true;
+					}
+				}
+				first = head;
+				n = count;
+				lost = dropped - droppedReported;
+				droppedReported = dropped;
+				done = closed && count == 0;
+			}
+			try{
+				for(int i=0; i < n; i++){
+					Event e = ring[(first + i) % ring.length];
+					format(e);
+					e.client = e.command = e.text = null;
+				}
+				if(lost > 0){
+					line.setLength(0);
+					line.append(stamp.format(new Date())).append(" ERROR log ring full, dropped ")
+						.append(lost).append(" events\n");
+					write();
+				}
+				out.flush();
+			}catch(IOException e){
+				// nowhere better to report this
+				System.err.println("SmtpLog write failed: " + e.getMessage());
+			}
+			synchronized(ring){
+				head = (head + n) % ring.length;
+				count -= n;
+			}
+			if(done) break;
+		}
+		try{
+			out.flush();
+			if(logFile != null) out.close();
+		}catch(IOException e){
+			System.err.println("SmtpLog close failed: " + e.getMessage());
+		}
+	}
+
+	private void format(Event e) throws IOException{
+		line.setLength(0);
+		line.append(stamp.format(new Date(e.time))).append(' ')
+			.append(LEVELS[e.level]);
+		if(e.session != 0) line.append(" s=").append(e.session);
+		if(e.client != null) line.append(" ip=").append(e.client);
+		if(e.command != null){
+			line.append(" cmd=").append(e.command)
+				.append(" code=").append(e.code)
+				.append(" bytes=").append(e.bytes)
+				.append(" ms=").append(e.millis);
+		}
+		if(e.text != null) line.append(' ').append(e.text);
+		line.append('\n');
+		write();
+	}
+
+	private void write() throws IOException{
+		out.append(line);
+		written += line.length();
+		if(logFile != null && written >= MAX_FILE_SIZE) rotate();
+	}
+
+	/**
+	 * Purpose: Opens the current log file for appending, falling
+	 *          back to System.out when it cannot be opened.
+	 */
+	private void openLog(){
+		if(logDir != null){
+			logFile = new File(logDir, FILE_NAME);
+			try{
+				written = logFile.length();
+				out = new BufferedWriter(new FileWriter(logFile, true), 64 * 1024);
+				return;
+			}catch(IOException e){
+				System.err.println("SmtpLog cannot open " + logFile + ": " + e.getMessage());
+				logFile = null;
+			}
+		}
+		out = new BufferedWriter(new OutputStreamWriter(System.out));
+	}
+
+	/**
+	 * Purpose: Shifts ksmtp.log.N to ksmtp.log.N+1, dropping the
+	 *          oldest, and starts a fresh ksmtp.log.
+	 */
+	private void rotate() throws IOException{
+		out.close();
+		new File(logDir, FILE_NAME + "." + KEEP_FILES).delete();
+		for(int i = KEEP_FILES - 1; i >= 1; i--)
+			new File(logDir, FILE_NAME + "." + i)
+				.renameTo(new File(logDir, FILE_NAME + "." + (i + 1)));
+		logFile.renameTo(new File(logDir, FILE_NAME + ".1"));
+		openLog();
+	}
+}
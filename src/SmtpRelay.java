@@ -0,0 +1,522 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The SmtpRelay class forwards mail for configured non-local
+ * domains to a smart host.  Accepted messages are written to a
+ * spool directory before the sender is told they were accepted,
+ * then handed to a small set of dispatcher threads.  Each
+ * dispatcher borrows a persistent SmtpClient connection from the
+ * pool and keeps sending queued messages over it while any are
+ * ready.  Message bodies are spooled and sent as raw bytes, so
+ * 8-bit mail is relayed unchanged and is never held in the heap.
+ * A Received: trace line is put in front of each spooled message,
+ * and a message already carrying more than MAX_HOPS of them is
+ * taken to be looping and fails at once.
+ * Temporary failures are retried with exponential backoff;
+ * recipients that fail permanently, or are still undeliverable
+ * after GIVE_UP, are copied to *.failed files in the spool.
+ *
+ * The relay is configured with system properties:
+ *   ksmtp.relayDomains - comma separated domains to relay
+ *   ksmtp.smartHost    - host[:port] of the smart host
+ *   ksmtp.relaySpool   - spool directory (default: .relay in
+ *                        the first storage root)
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class SmtpRelay{
+	// Dispatcher threads, and so the most connections opened
+	private static int POOL_SIZE = 4;
+	// Messages sent on one connection before it is replaced
+	private static int MAX_PER_CONNECTION = 100;
+	// Idle pooled connections older than this are closed
+	private static long IDLE_TIMEOUT = 60 * 1000L;
+	// Retry schedule
+	private static long RETRY_BASE = 60 * 1000L;
+	private static long RETRY_MAX = 60 * 60 * 1000L;
+	private static long GIVE_UP = 5 * 24 * 60 * 60 * 1000L;
+	// Received: lines allowed before a message counts as looping
+	private static int MAX_HOPS = 30;
+	private static final char[] RECEIVED = "received:".toCharArray();
+	private static boolean DEBUG = false;
+
+	private static SmtpRelay instance = null;
+
+	private Set<String> domains = new HashSet<String>();
+	private String smartHost;
+	private int smartPort = 25;
+	private File spool;
+	private String heloName;
+	private DelayQueue<Job> queue = new DelayQueue<Job>();
+	private LinkedList<SmtpClient> idle = new LinkedList<SmtpClient>();
+	private Dispatcher[] dispatchers;
+	private volatile boolean stopping = false;
+	private long sequence = 0;
+
+	/**
+	 * A spooled message and its retry state.
+	 */
+	private static class Job implements Delayed{
+		File file;
+		String from;
+		List<String> rcpts;
+		// where the body starts in the spool file
+		long bodyOffset;
+		int attempts = 0;
+		long created;
+		long due;
+
+		public long getDelay(TimeUnit unit){
+			return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed o){
+			long d = due - ((Job)o).due;
+			return d < 0 ? -1 : (d > 0 ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Purpose: Reads the relay system properties and, if a smart
+	 *          host and relay domains are given, starts the relay
+	 *          and requeues anything left in the spool.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   Must be called before the SmtpServer accepts connections.
+	 *
+	 * @param store The mail store, whose first root holds the
+	 *              default spool directory
+	 * @param helo Name to announce to the smart host
+	 * @throws IOException if the spool cannot be created
+	 * @return void
+	 * @see relays()
+	 */
+	static synchronized void configure(MailStore store, String helo) throws IOException{
+		String list = System.getProperty("ksmtp.relayDomains");
+		String host = System.getProperty("ksmtp.smartHost");
+		if(list == null || host == null || instance != null) return;
+
+		SmtpRelay r = new SmtpRelay();
+		String[] d = list.split(",");
+		for(int i=0; i < d.length; i++)
+			if(d[i].trim().length() > 0) r.domains.add(d[i].trim().toLowerCase());
+		int colon = host.lastIndexOf(':');
+		if(colon > 0){
+			r.smartPort = Integer.parseInt(host.substring(colon + 1));
+			host = host.substring(0, colon);
+		}
+		r.smartHost = host;
+		r.heloName = helo;
+		String dir = System.getProperty("ksmtp.relaySpool");
+		r.spool = dir != null ? new File(dir) : new File(store.getRoots()[0], ".relay");
+		if(!r.spool.isDirectory() && !r.spool.mkdirs())
+			throw new IOException("cannot create relay spool " + r.spool);
+		r.recover();
+
+		r.dispatchers = new Dispatcher[POOL_SIZE];
+		for(int i=0; i < POOL_SIZE; i++)
+			r.dispatchers[i] = r.new Dispatcher(i);
+		instance = r;
+	}
+
+	/**
+	 * Purpose: Reports whether mail for a domain is relayed.
+	 *
+	 * @param domain Recipient domain
+	 * @return boolean TRUE if the domain is relayed
+	 */
+	static boolean relays(String domain){
+		SmtpRelay r = instance;
+		return r != null && r.domains.contains(domain.toLowerCase());
+	}
+
+	/**
+	 * Purpose: Spools a message for relaying, behind its trace
+	 *          line.  When this returns the message is on disk and
+	 *          may be acknowledged.  A message that has passed
+	 *          through more than MAX_HOPS servers is not queued
+	 *          but failed, as it is most likely looping.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions: relays() is TRUE for every recipient domain
+	 *
+	 * @param from Sender address, without angle brackets
+	 * @param rcpts Recipient addresses, without angle brackets
+	 * @param trace Received: line for this hop, without a line end
+	 * @param body Message lines, each ended by "\n"
+	 * @throws IOException if the message could not be spooled
+	 * @return void
+	 * @see Dispatcher
+	 */
+	static void enqueue(String from, List<String> rcpts, String trace, MessageSpool body)
+			throws IOException{
+		SmtpRelay r = instance;
+		if(r == null) throw new IOException("relay not configured");
+		String id;
+		synchronized(r){
+			id = System.currentTimeMillis() + "." + (++r.sequence);
+		}
+		Job j = new Job();
+		j.file = new File(r.spool, id + ".msg");
+		j.from = from;
+		j.rcpts = new ArrayList<String>(rcpts);
+		j.created = System.currentTimeMillis();
+		j.due = j.created;
+		writeSpool(j, (trace + "\n").getBytes("UTF-8"), body, null);
+		int hops = hops(j);
+		if(hops > MAX_HOPS){
+			SmtpLog.error(0, null, "Relay of " + j.file.getName() + " refused: "
+					+ hops + " Received: lines, mail loop suspected");
+			for(int i=0; i < j.rcpts.size(); i++) r.fail(j, j.rcpts.get(i));
+			j.file.delete();
+			return;
+		}
+		r.queue.add(j);
+	}
+
+	/**
+	 * Purpose: Counts the Received: lines in a spooled message's
+	 *          header, which ends at the first empty line.
+	 *
+	 * @param j Spooled job
+	 * @throws IOException if the spool file cannot be read
+	 * @return int the number of hops
+	 */
+	private static int hops(Job j) throws IOException{
+		InputStream in = new BufferedInputStream(new FileInputStream(j.file));
+		try{
+			long skipped = 0;
+			while(skipped < j.bodyOffset){
+				long n = in.skip(j.bodyOffset - skipped);
+				if(n <= 0) return 0;
+				skipped += n;
+			}
+			int hops = 0, col = 0, c;
+			boolean match = true;
+			while((c = in.read()) >= 0){
+				if(c == '\n'){
+					if(col == 0) break;
+					col = 0;
+					match = true;
+					continue;
+				}
+				if(c == '\r' && col == 0) continue;
+				if(match && col < RECEIVED.length){
+					match = Character.toLowerCase((char)c) == RECEIVED[col];
+					if(match && col == RECEIVED.length - 1) hops++;
+				}
+				col++;
+			}
+			return hops;
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Purpose: Stops the dispatchers and closes pooled
+	 *          connections.  Queued messages stay in the spool
+	 *          and are sent after the next start.
+	 *
+	 * @param timeout Maximum milliseconds to wait per dispatcher
+	 */
+	static void close(long timeout){
+		SmtpRelay r = instance;
+		if(r == null) return;
+		r.stopping = true;
+		for(int i=0; i < r.dispatchers.length; i++)
+			r.dispatchers[i].interrupt();
+		for(int i=0; i < r.dispatchers.length; i++){
+			try{
+				r.dispatchers[i].join(timeout);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized(r.idle){
+			while(!r.idle.isEmpty())
+				r.idle.removeFirst().quit();
+		}
+	}
+
+	/**
+	 * Purpose: Summarizes the relay for the admin STATUS command.
+	 *
+	 * @return String queue length, or an empty string if the
+	 *                relay is not configured
+	 */
+	static String stats(){
+		SmtpRelay r = instance;
+		if(r == null) return "";
+		return " relay queued=" + r.queue.size();
+	}
+
+	/**
+	 * Purpose: Requeues every message found in the spool, to be
+	 *          sent immediately.
+	 */
+	private void recover(){
+		File[] files = spool.listFiles();
+		if(files == null) return;
+		for(int i=0; i < files.length; i++){
+			if(!files[i].getName().endsWith(".msg")) continue;
+			try{
+				Job j = readEnvelope(files[i]);
+				queue.add(j);
+			}catch(IOException e){
+				SmtpLog.error(0, null, "Cannot read relay spool file "
+						+ files[i] + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Purpose: Writes a spool file: the sender on the first line,
+	 *          one recipient per line, a blank line, then the body
+	 *          bytes.  The body comes from the received message, after
+	 *          its trace line, or is copied from another job's spool
+	 *          file.  The file
+	 *          is written under a temporary name and renamed so a
+	 *          crash never leaves a partial message.
+	 *
+	 * @param j Job to write, with its file and envelope set
+	 * @param trace Bytes written ahead of body; ignored when copying
+	 * @param body The received message, or null to copy
+	 * @param from Job whose body is copied when body is null; may
+	 *             be j itself
+	 */
+	private static void writeSpool(Job j, byte[] trace, MessageSpool body, Job from)
+			throws IOException{
+		StringBuilder env = new StringBuilder();
+		env.append(j.from).append('\n');
+		for(int i=0; i < j.rcpts.size(); i++)
+			env.append(j.rcpts.get(i)).append('\n');
+		env.append('\n');
+		byte[] head = env.toString().getBytes("UTF-8");
+		File tmp = new File(j.file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try{
+			out.write(head);
+			FileChannel ch = out.getChannel();
+			if(body != null){
+				out.write(trace);
+				body.writeTo(ch);
+			}else{
+				FileChannel in = new FileInputStream(from.file).getChannel();
+				try{
+					long pos = from.bodyOffset, end = in.size();
+					while(pos < end)
+						pos += in.transferTo(pos, end - pos, ch);
+				}finally{
+					in.close();
+				}
+			}
+		}finally{
+			out.close();
+		}
+		if(j.file.exists()) j.file.delete();
+		if(!tmp.renameTo(j.file)) throw new IOException("cannot rename " + tmp);
+		j.bodyOffset = head.length;
+	}
+
+	private static Job readEnvelope(File f) throws IOException{
+		InputStream in = new BufferedInputStream(new FileInputStream(f));
+		try{
+			Job j = new Job();
+			j.file = f;
+			j.rcpts = new ArrayList<String>();
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			long offset = 0;
+			int c;
+			while((c = in.read()) >= 0){
+				offset++;
+				if(c != '\n'){
+					line.write(c);
+					continue;
+				}
+				String s = line.toString("UTF-8");
+				line.reset();
+				// the sender comes first, and may be empty
+				if(j.from == null) j.from = s;
+				else if(s.length() == 0) break;
+				else j.rcpts.add(s);
+			}
+			if(c < 0 || j.rcpts.isEmpty())
+				throw new IOException("truncated envelope");
+			j.bodyOffset = offset;
+			j.created = f.lastModified();
+			j.due = System.currentTimeMillis();
+			return j;
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Purpose: Takes a pooled connection, or opens a new one.
+	 */
+	private SmtpClient borrow() throws IOException{
+		synchronized(idle){
+			while(!idle.isEmpty()){
+				SmtpClient c = idle.removeFirst();
+				if(System.currentTimeMillis() - c.getLastUsed() < IDLE_TIMEOUT)
+					return c;
+				c.quit();
+			}
+		}
+		return new SmtpClient(smartHost, smartPort, heloName);
+	}
+
+	/**
+	 * Purpose: Returns a connection to the pool, retiring it
+	 *          once it has carried MAX_PER_CONNECTION messages.
+	 */
+	private void release(SmtpClient c){
+		if(stopping || c.getMessageCount() >= MAX_PER_CONNECTION){
+			c.quit();
+			return;
+		}
+		synchronized(idle){
+			idle.addFirst(c);
+		}
+	}
+
+	/**
+	 * Purpose: Sends one job on a connection and updates the
+	 *          spool from the per-recipient results.
+	 *
+	 * @throws IOException if the connection failed, in which case
+	 *                     nothing was delivered and the connection
+	 *                     must not be reused
+	 */
+	private void send(SmtpClient c, Job j) throws IOException{
+		int[] codes;
+		String[] replies = new String[j.rcpts.size()];
+		FileChannel body = new FileInputStream(j.file).getChannel();
+		try{
+			codes = c.sendMessage(j.from, j.rcpts, body, j.bodyOffset, replies);
+		}finally{
+			body.close();
+		}
+		List<String> again = new ArrayList<String>();
+		String deferral = null;
+		for(int i=0; i < codes.length; i++){
+			if(codes[i] / 100 == 2){
+				if(DEBUG) SmtpLog.debug("Relayed " + j.file.getName() + " to " + j.rcpts.get(i));
+			}else if(codes[i] / 100 == 4){
+				again.add(j.rcpts.get(i));
+				if(deferral == null) deferral = replies[i];
+			}else{
+				SmtpLog.error(0, null, "Relay of " + j.file.getName() + " to "
+						+ j.rcpts.get(i) + " failed permanently: " + replies[i]);
+				fail(j, j.rcpts.get(i));
+			}
+		}
+		if(again.isEmpty()){
+			j.file.delete();
+		}else{
+			try{
+				j.rcpts = again;
+				writeSpool(j, null, null, j);
+				retry(j, deferral);
+			}catch(IOException e){
+				SmtpLog.error(0, null, "Cannot update relay spool file "
+						+ j.file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Purpose: Schedules another attempt, or gives up once the
+	 *          message has been queued longer than GIVE_UP.
+	 */
+	private void retry(Job j, String reason){
+		j.attempts++;
+		if(System.currentTimeMillis() - j.created > GIVE_UP){
+			SmtpLog.error(0, null, "Giving up on relay of " + j.file.getName()
+					+ " after " + j.attempts + " attempts: " + reason);
+			for(int i=0; i < j.rcpts.size(); i++) fail(j, j.rcpts.get(i));
+			j.file.delete();
+			return;
+		}
+		long wait = RETRY_BASE << Math.min(j.attempts - 1, 16);
+		j.due = System.currentTimeMillis() + Math.min(wait, RETRY_MAX);
+		SmtpLog.info("Relay of " + j.file.getName() + " deferred, attempt "
+				+ j.attempts + ": " + reason);
+		queue.add(j);
+	}
+
+	/**
+	 * Purpose: Records a recipient that will not be delivered by
+	 *          copying its envelope and body to a .failed file.
+	 */
+	private void fail(Job j, String rcpt){
+		try{
+			Job f = new Job();
+			f.file = new File(spool, j.file.getName() + "." + MailStore.hash(rcpt) + ".failed");
+			f.from = j.from;
+			f.rcpts = Collections.singletonList(rcpt);
+			writeSpool(f, null, null, j);
+		}catch(IOException e){
+			SmtpLog.error(0, null, "Cannot record failed relay to " + rcpt
+					+ ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The Dispatcher thread waits for a due message, then sends it
+	 * and every other due message over one pooled connection.
+	 */
+	private class Dispatcher extends Thread{
+		Dispatcher(int n){
+			setDaemon(true);
+			setName("SmtpRelay dispatcher " + n);
+			start();
+		}
+
+		public void run(){
+			while(!stopping){
+				Job j;
+				try{
+					j = queue.take();
+				}catch(InterruptedException e){
+					break;
+				}
+				SmtpClient c = null;
+				boolean retried = false;
+				while(j != null){
+					try{
+						if(c == null) c = borrow();
+						send(c, j);
+					}catch(IOException e){
+						boolean reused = c != null && c.getMessageCount() > 0;
+						if(c != null) c.close();
+						c = null;
+						if(reused && !retried){
+							// a kept-alive connection may have gone
+							// stale; try once more on a fresh one
+							retried = true;
+							continue;
+						}
+						retry(j, e.getMessage());
+						break;
+					}
+					retried = false;
+					j = c.getMessageCount() < MAX_PER_CONNECTION ? queue.poll() : null;
+				}
+				if(c != null) release(c);
+			}
+		}
+	}
+}
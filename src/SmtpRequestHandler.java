@@ -1,5 +1,10 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.regex.Pattern;
 
 /**
  * The SmtpRequestHandler class is designed to handle an incoming
@@ -16,16 +21,47 @@ class SmtpRequestHandler extends Thread{
 	// Private Data Members
 	private String messageText;
 	private String domain;
-	private String directory;
+	private MailStore store;
 	private String recipients;
+	private String sender;
+	private List<String> relayRcpts = new ArrayList<String>();
 	private String serverName;
+	// As given by the client in HELO/EHLO, for the trace line
+	private String clientName = null;
+	private boolean extendedHelo = false;
 	private Socket client;
+	private SmtpServer server;
 	private boolean quit = false;
+	private volatile boolean closing = false;
 	private static boolean DEBUG = false;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	// Logging context
+	private long sessionId;
+	private String clientIp;
+	private int lastCode = 0;
+	private long dataBytes = 0;
 	
 	// connection I/O
-	private BufferedReader input = null;
-	private DataOutputStream output = null;
+	private SessionIO io = null;
+	private TlsConnection tls = null;
+	private DataScanner scanner = new DataScanner();
+	private MessageSpool spool = new MessageSpool();
+	
+	// Fixed replies, encoded once
+	private static String SERVER_NAME = localName();
+	private static byte[] REPLY_READY = SessionIO.fixedReply(220,
+			SERVER_NAME + " SMTP server ready");
+	private static byte[] REPLY_CLOSING = SessionIO.fixedReply(221,
+			SERVER_NAME + " closing connection");
+	private static byte[] REPLY_OK = SessionIO.fixedReply(250, "OK");
+	private static byte[] REPLY_DATA = SessionIO.fixedReply(354,
+			"enter mail, end with '.' on a line by itself");
+	
+	// Address syntax, compiled once
+	private static final Pattern MAIL_PATH = Pattern.compile("[<].*?[>]");
+	private static final Pattern RCPT_PATH = Pattern.compile("[<]..*?[@].*?[>]");
+	private static final Pattern BRACKETS = Pattern.compile("[<>]");
 	
 	private int requiredCmd;
 	// Cmd States
@@ -47,37 +83,46 @@ class SmtpRequestHandler extends Thread{
 	 *   The request socket passed into this constructor must 
 	 *   contain a valid socket connection.
 	 *   
+	 * @param srv The server which owns this session
 	 * @param req The socket which has been assigned to this
 	 *            incoming request must be passed in.
 	 * @param dom The acceptable destination domain name
-	 * @param dir The directory where accepted messages must be
-	 *            stored.
+	 * @param dir The mail store where accepted messages must be
+	 *            saved.
 	 * @return SmtpRequestHandler thread
 	 * @see nothing
 	 * 
 	 */
-	SmtpRequestHandler(Socket req, String dom, String dir){
+	SmtpRequestHandler(SmtpServer srv, Socket req, String dom, MailStore dir){
+		server = srv;
 		client = req;
 		domain = dom;
-		directory = dir;
+		store = dir;
 		messageText = "";
 		recipients = "";
 		requiredCmd = HELO;
+		sessionId = SmtpLog.newSession();
+		clientIp = req.getInetAddress().getHostAddress();
 		
 		try{
 			// Set Host Name
-			serverName = InetAddress.getLocalHost().getHostName();
-			// Initialize Client I/O streams
-			input = new BufferedReader(
-					new InputStreamReader(req.getInputStream()));
-			output = new DataOutputStream(req.getOutputStream());
+			serverName = SERVER_NAME;
+			// Each reply is flushed whole; don't let Nagle hold
+			// back pipelined replies waiting for an ACK
+			req.setTcpNoDelay(true);
+			// Initialize Client I/O, which needs the socket's channel
+			SocketChannel ch = req.getChannel();
+			if(ch == null)
+				throw new IOException("socket was not accepted from a ServerSocketChannel");
+			io = new SessionIO(ch);
 			
+			server.sessionOpened(this);
 			this.start();
 		}catch(Exception e){
-			System.out.println(".. .. .. Client i/o exception occurred: "
+			SmtpLog.error(sessionId, clientIp, "Client i/o exception occurred: "
 					           + e.getMessage());
 			try{ client.close(); } catch(Exception f) {
-				if(DEBUG) System.out.println(".. .. .. Failed to Close the Client connection");
+				if(DEBUG) SmtpLog.debug(".. .. .. Failed to Close the Client connection");
 			}
 		}
 	}
@@ -99,19 +144,79 @@ class SmtpRequestHandler extends Thread{
 	 */
 	
 	public void run(){
-		// Confirm that the connection was received
-		sendResponse(220,serverName + " SMTP server ready");
-		while(!quit){
-			handleCommand();
+		try{
+			// Confirm that the connection was received
+			sendFixed(220, REPLY_READY);
+			while(!quit){
+				handleCommand();
+			}
+			// QUIT received, close connection nicely
+			if(!closing){
+				sendFixed(221, REPLY_CLOSING);
+				SmtpLog.command(sessionId, clientIp, "QUIT", 221, 0, 0);
+			}
+		}catch(RuntimeException e){
+			SmtpLog.error(sessionId, clientIp, "Session failed: " + e);
+			closing = true;
+		}finally{
+			try{
+				if(tls != null && !closing) tls.close();
+			}catch(Exception c){
+				if(DEBUG) SmtpLog.debug(".. .. .. Failed to send TLS close_notify");
+			}
+			try{
+				client.close();
+			}catch(Exception c){
+				SmtpLog.error(sessionId, clientIp, "Error closing client connection: "
+						           + c.getMessage());
+			}
+			io.close();
+			spool.reset();
+			server.sessionClosed(this);
 		}
-		// QUIT received, close connection nicely
-		sendResponse(221,serverName + " closing connection");
+	}
+	
+	/**
+	 * Purpose: The abort() method is called by the server when a
+	 *          drain deadline has passed.  Closing the socket
+	 *          unblocks the session thread, which then exits.
+	 *          
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 * 
+	 * Preconditions: none
+	 * 
+	 * @return void
+	 * @see SmtpServer.drain()
+	 */
+	void abort(){
+		closing = true;
 		try{
 			client.close();
 		}catch(Exception c){
-			System.out.println(".. .. .. Error closing client connection: "
-					           + c.getMessage());
+			if(DEBUG) SmtpLog.debug(".. .. .. Failed to Close the Client connection");
 		}
+		// an idle session is parked on the selector, not the socket
+		io.abortWait();
+	}
+	
+	/**
+	 * Purpose: The drainIdle() method is called by the server
+	 *          when a drain starts.  A session waiting for a
+	 *          command outside a transaction is woken at once to
+	 *          answer 421 and close; a session with an open
+	 *          MAIL/RCPT/DATA carries on until it ends.
+	 *          
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 * 
+	 * Preconditions: none
+	 * 
+	 * @return void
+	 * @see SmtpServer.drain()
+	 */
+	void drainIdle(){
+		io.interrupt();
 	}
 	
 	/**
@@ -130,40 +235,85 @@ class SmtpRequestHandler extends Thread{
 	 */
 	private void handleCommand(){
 		try{
-			String cmd = input.readLine();
-			String[] params = {};
-			if(cmd.length() > 4)
-				params = cmd.substring(5).split(" ");
-			String tmp = new String(cmd.toUpperCase());
-			if(tmp.startsWith("HELO")){
-				parseHelo(params);
-			}else if(tmp.startsWith("MAIL")){
-				if(heloDone()) parseMail(params);
-			}else if(tmp.startsWith("RCPT")){
-				if(heloDone())parseRcpt(params);
-			}else if(tmp.startsWith("DATA")){
-				if(heloDone())parseData(params);
-			}else if(tmp.startsWith("QUIT")){
+			// between transactions, a drain may end the wait
+			if(io.readLineBytes(requiredCmd <= MAIL) < 0){
+				// client went away without a QUIT
+				closing = quit = true;
+				return;
+			}
+			// When draining, let an open transaction finish but
+			// refuse anything that would start a new one.
+			if(server.isDraining() && requiredCmd <= MAIL){
+				refuseDraining();
+				return;
+			}
+			long started = System.currentTimeMillis();
+			String verb = "?";
+			// The verb is matched on the line's bytes; only the
+			// first parameter word is decoded, and only for the
+			// commands that take one.
+			if(io.lineStartsWith("HELO")){
+				verb = "HELO";
+				parseHelo(io.lineWord(5), false);
+			}else if(io.lineStartsWith("EHLO")){
+				verb = "EHLO";
+				parseHelo(io.lineWord(5), true);
+			}else if(io.lineStartsWith("STARTTLS")){
+				verb = "STARTTLS";
+				if(heloDone()) parseStartTls();
+			}else if(io.lineStartsWith("MAIL")){
+				verb = "MAIL";
+				if(heloDone()) parseMail(io.lineWord(5));
+			}else if(io.lineStartsWith("RCPT")){
+				verb = "RCPT";
+				if(heloDone())parseRcpt(io.lineWord(5));
+			}else if(io.lineStartsWith("DATA")){
+				verb = "DATA";
+				if(heloDone())parseData();
+			}else if(io.lineStartsWith("QUIT")){
+				// logged by run() once the 221 has been sent
 				quit = true;
-			}else if(tmp.startsWith("RSET")){
+				return;
+			}else if(io.lineStartsWith("RSET")){
+				verb = "RSET";
 				resetMsg();
-				sendResponse(250, "OK");
-			}else if(tmp.startsWith("NOOP")){
-				sendResponse(250, "OK");
-			}else if(tmp.startsWith("EXIT")){
-				sendResponse(999, "Exiting Application");
-				client.close();
-				System.exit(0);
+				sendFixed(250, REPLY_OK);
+			}else if(io.lineStartsWith("NOOP")){
+				verb = "NOOP";
+				sendFixed(250, REPLY_OK);
 			}else{
 				sendResponse(500,"unrecognized command");
 			}
+			if(!closing)
+				SmtpLog.command(sessionId, clientIp, verb, lastCode, dataBytes,
+						System.currentTimeMillis() - started);
+			dataBytes = 0;
+		}catch(InterruptedIOException e){
+			// woken by drainIdle()
+			refuseDraining();
 		}catch(IOException e){
-			System.out.println("Error receiving client command: "
-					           + e.getMessage());
+			if(!closing)
+				SmtpLog.error(sessionId, clientIp, "Error receiving client command: "
+						           + e.getMessage());
 			try{client.close();}catch(Exception c){}
+			closing = quit = true;
 		}
 	}
 	
+	/**
+	 * Purpose: Answers 421 and ends the session, once the server
+	 *          is draining and no transaction is open.
+	 * 
+	 * @return void
+	 * @see drainIdle
+	 */
+	private void refuseDraining(){
+		sendResponse(421, serverName
+				    + " service shutting down, closing channel");
+		SmtpLog.command(sessionId, clientIp, "-", 421, 0, 0);
+		closing = quit = true;
+	}
+	
 	/**
 	 * Purpose: The heloDone method will be used during command
 	 *          parsing to ensure that a HELO command has been
@@ -188,27 +338,91 @@ class SmtpRequestHandler extends Thread{
 	 * Purpose: This method is designed to parse a HELO command
 	 *          sent by the client.  The command should consist
 	 *          of the HELO lexeme followed by an identifier of
-	 *          the sending machine or application.
+	 *          the sending machine or application.  EHLO is
+	 *          handled the same way, but the reply also lists
+	 *          the supported service extensions.
 	 *          
 	 * @author Ken Molcsan
 	 * @version 1.0a
 	 * 
 	 * Preconditions: none
 	 *   
+	 * @param param First command parameter, null if none
+	 * @param extended TRUE for EHLO
 	 * @return void
 	 * @see nothing
 	 * 
 	 */
-	private void parseHelo(String[] params){
+	private void parseHelo(String param, boolean extended){
 		// HELO is expecting exactly 1 parameter
-		if(params.length > 0){
-			sendResponse(250, serverName
+		if(param != null){
+			String greeting = serverName
 					    + " hello " 
 					    + client.getInetAddress().getHostName()
-					    + " pleased to meet you");
+					    + " pleased to meet you";
+			if(!extended)
+				sendResponse(250, greeting);
+			else if(tls == null && SmtpTls.available())
+				sendResponse(250, new String[]{greeting, "PIPELINING", "STARTTLS"});
+			else
+				sendResponse(250, new String[]{greeting, "PIPELINING"});
 			if(requiredCmd == HELO) requiredCmd = MAIL;
+			clientName = param;
+			extendedHelo = extended;
 		}else{
-			sendResponse(501, "HELO requires valid address");
+			sendResponse(501, (extended ? "EHLO" : "HELO")
+					    + " requires valid address");
+		}
+	}
+	
+	/**
+	 * Purpose: This method handles the STARTTLS command (RFC
+	 *          3207).  After the 220 reply the TLS handshake is
+	 *          run over the client socket, the session I/O is
+	 *          switched to the encrypted streams, and the session
+	 *          returns to its initial state so the client must
+	 *          say EHLO again.
+	 *          
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 * 
+	 * Preconditions: HELO or EHLO has been received
+	 *   
+	 * @return void
+	 * @see TlsConnection
+	 * 
+	 */
+	private void parseStartTls(){
+		if(tls != null || !SmtpTls.available()){
+			sendResponse(502, "STARTTLS not available");
+			return;
+		}
+		if(requiredCmd > MAIL){
+			sendResponse(503, "STARTTLS not permitted during a mail transaction");
+			return;
+		}
+		sendResponse(220, "Ready to start TLS");
+		try{
+			TlsConnection t = new TlsConnection(
+					SmtpTls.createEngine(clientIp, client.getPort()),
+					io);
+			t.handshake();
+			tls = t;
+			// Anything the client sent before the handshake is
+			// discarded by the switch.
+			io.startTls(tls);
+			SmtpLog.info(sessionId, clientIp, "TLS "
+					+ (tls.isResumed() ? "resumed " : "full handshake ")
+					+ tls.describe());
+			requiredCmd = HELO;
+			messageText = "";
+			recipients = "";
+			relayRcpts.clear();
+		}catch(IOException e){
+			SmtpLog.error(sessionId, clientIp, "TLS handshake failed: "
+					+ e.getMessage());
+			try{client.close();}catch(Exception c){}
+			closing = quit = true;
 		}
 	}
 	
@@ -223,23 +437,23 @@ class SmtpRequestHandler extends Thread{
 	 * 
 	 * Preconditions: none
 	 *   
+	 * @param param First command parameter, null if none
 	 * @return void
 	 * @see nothing
 	 * 
 	 */
-	private void parseMail(String[] params){
+	private void parseMail(String param){
 		// Check to see whether we already specified the sender
 		if(requiredCmd == MAIL){
 			// MAIL expects the FROM parameter
-			if(params.length > 0 
-			   && params[0].toUpperCase().startsWith("FROM")){
-				String addr = "";
-				if(params[0].split(":").length > 1) 
-					addr = params[0].split(":")[1];
-				if(addr.matches("[<].*?[>]")){
+			if(param != null 
+			   && param.regionMatches(true, 0, "FROM", 0, 4)){
+				String addr = pathArg(param);
+				if(MAIL_PATH.matcher(addr).matches()){
 					sendResponse(250,addr + " sender ok");
 					// Start assembling the messageText
-					messageText = params[0];
+					messageText = param;
+					sender = BRACKETS.matcher(addr).replaceAll("");
 					// set the next expected command
 					requiredCmd = RCPT;
 				}else{
@@ -259,49 +473,65 @@ class SmtpRequestHandler extends Thread{
 	 *          of the RCPT lexeme followed by a TO:<address>
 	 *          parameter which contains the recipient address.
 	 *          NOTE: the recipient address must be a mailbox
-	 *          on this domain, otherwise it will be rejected.
+	 *          on this domain, or on a domain configured for
+	 *          SmtpRelay, otherwise it will be rejected.
 	 *          
 	 * @author Ken Molcsan
 	 * @version 1.0a
 	 * 
 	 * Preconditions: none
 	 *   
+	 * @param param First command parameter, null if none
 	 * @return void
 	 * @see nothing
 	 * 
 	 */
-	private void parseRcpt(String[] params){
+	private void parseRcpt(String param){
 		if(requiredCmd < RCPT)
 			sendResponse(503, "need MAIL before RCPT");
 		else{
 			// RCPT expects the TO: parameter
-			if(params.length > 0 
-			   && params[0].toUpperCase().startsWith("TO")){
-				String addr = "";
-				if(params[0].split(":").length > 1) 
-					addr = params[0].split(":")[1];
-				if(addr.matches("[<]..*?[@].*?[>]")){
-					String a = addr.replaceAll("[<>]", "");
+			if(param != null 
+			   && param.regionMatches(true, 0, "TO", 0, 2)){
+				String addr = pathArg(param);
+				String a = BRACKETS.matcher(addr).replaceAll("");
+				int at = a.indexOf('@');
+				if(!RCPT_PATH.matcher(addr).matches()){
+					sendResponse(550,"malformed address");
+				}else if(at <= 0 || at == a.length() - 1
+					 || a.indexOf('@', at + 1) >= 0){
+					// no local part or domain to deliver to
+					sendResponse(501, addr + " malformed path");
+				}else{
+					String user = a.substring(0, at);
+					String host = a.substring(at + 1);
 					// Check to make sure the recipient is a
-					// domain mailbox
-					if(a.split("@")[1].equals(domain)){
+					// domain mailbox, or one we relay for
+					boolean local = host.equals(domain);
+					if(local && !MailStore.isValidUser(user)){
+						// the name would reach the store's own files
+						sendResponse(550, addr + " mailbox name not allowed");
+					}else if(local || SmtpRelay.relays(host)){
 						sendResponse(250,addr + " recipient ok");
-						messageText += "\n" + params[0];
+						messageText += "\n" + param;
 						
 						// set the next expected command
 						if(requiredCmd == RCPT){
 							requiredCmd = DATA;
-							recipients = a.split("@")[0];
-						}else{
-							// we already have one recipient
-							recipients += "," + a.split("@")[0];
+							recipients = "";
+							relayRcpts.clear();
 						}
+						if(!local)
+							relayRcpts.add(a);
+						else if(recipients.length() == 0)
+							recipients = user;
+						else
+							// we already have one recipient
+							recipients += "," + user;
 					}else
 						sendResponse(503,"Recipient rejected. "
 								    + "Only mail destined for "
 								    + domain + " can be delivered.");
-				}else{
-					sendResponse(550,"malformed address");
 				}
 			}else{
 				sendResponse(501, "syntax error in parameter scanning");
@@ -309,6 +539,20 @@ class SmtpRequestHandler extends Thread{
 		}
 	}
 	
+	/**
+	 * Purpose: Extracts the path from a FROM: or TO: parameter,
+	 *          the text between the first colon and the next.
+	 * 
+	 * @param param The command's first parameter
+	 * @return String the path, empty if there is none
+	 */
+	private static String pathArg(String param){
+		int colon = param.indexOf(':');
+		if(colon < 0) return "";
+		int end = param.indexOf(':', colon + 1);
+		return param.substring(colon + 1, end < 0 ? param.length() : end);
+	}
+	
 	/**
 	 * Purpose: This method is designed to parse a DATA command
 	 *          sent by the client.  The initial DATA command will
@@ -326,7 +570,7 @@ class SmtpRequestHandler extends Thread{
 	 * @see saveMsgData
 	 * 
 	 */
-	private void parseData(String[] params){
+	private void parseData(){
 		if(requiredCmd < RCPT)
 			sendResponse(503, "need MAIL before DATA");
 		else if(requiredCmd < DATA)
@@ -334,66 +578,111 @@ class SmtpRequestHandler extends Thread{
 		else{
 			// Notify the client that the DATA command has been
 			// received, then prompt them for the message data.
-			sendResponse(354, "enter mail, end with '.' on a line by itself");
-			String msg = "";
-			String msgLine = "";
-			if(DEBUG) System.out.println("Reading DATA string");
-			while(true){
-				try{
-					msgLine = input.readLine();
-				}catch(IOException e){
-					System.out.println("Error reading data from client: "
+			sendFixed(354, REPLY_DATA);
+			scanner.reset();
+			spool.reset();
+			if(DEBUG) SmtpLog.debug("Reading DATA string");
+			boolean complete;
+			try{
+				complete = io.readData(scanner, spool);
+			}catch(IOException e){
+				if(!closing)
+					SmtpLog.error(sessionId, clientIp, "Error reading data from client: "
 							           + e.getMessage());
-				}
-				if(msgLine.equals(".")) break;
-				if(msgLine.startsWith("."))
-					msgLine = msgLine.substring(1);
-				msg += "\n" + msgLine;
+				complete = false;
 			}
-			if(DEBUG) System.out.println("DATA input successful");
-			messageText += msg;
+			dataBytes = scanner.consumed();
+			if(!complete){
+				// connection lost mid-message, nothing is
+				// committed and the sender will retry
+				spool.reset();
+				closing = quit = true;
+				return;
+			}
+			if(spool.getError() != null){
+				// the message was read to its end, but not kept
+				SmtpLog.error(sessionId, clientIp, "Error spooling message data: "
+						           + spool.getError().getMessage());
+				sendResponse(452, "insufficient system storage, try again later");
+				resetMsg();
+				return;
+			}
+			if(DEBUG) SmtpLog.debug("DATA input successful");
 			// After the message has been collected, it should
 			// be sent automatically
-			if(DEBUG) System.out.println("Starting Message Save operation");
-			saveMsgData();
-			if(DEBUG) System.out.println("Message Data saved successfully");
-			sendResponse(250,messageText.hashCode() 
-					     + " mail accepted for delivery");
-			if(DEBUG) System.out.println("Message accepted, running reset operation");
+			if(DEBUG) SmtpLog.debug("Starting Message Save operation");
+			if(saveMsgData()){
+				if(DEBUG) SmtpLog.debug("Message Data saved successfully");
+				sendResponse(250,(messageText.hashCode() * 31 + (int)spool.size())
+						     + " mail accepted for delivery");
+			}else{
+				sendResponse(451, "local error in processing, try again later");
+			}
+			if(DEBUG) SmtpLog.debug("Message accepted, running reset operation");
 			resetMsg();
 		}
 	}
 	
 	/**
 	 * Purpose: The saveMsgData method is intended to save the
-	 *          sent message to the recipient(s) data-file(s)
+	 *          sent message to the recipient(s) data-file(s).
+	 *          The mail store writes recipients on different
+	 *          storage roots in parallel.  Relayed recipients are
+	 *          spooled first; if that fails nothing is saved so
+	 *          the client can safely retry the whole message.
 	 *          
 	 * @author Ken Molcsan
 	 * @version 1.0a
 	 * 
 	 * Preconditions: valid recipient(s) have been set
 	 * 
-	 * @return void
-	 * @see nothing
+	 * @return boolean FALSE if the message could not be spooled
+	 *                 for relaying, or could not be written for
+	 *                 every local recipient
+	 * @see MailStore.deliver, SmtpRelay.enqueue
 	 */
-	private void saveMsgData(){
-		BufferedWriter outFile = null;
-		String[] users = recipients.split(",");
-		for(int i=0; i < users.length; i++){
+	private boolean saveMsgData(){
+		if(!relayRcpts.isEmpty()){
 			try{
-				if(DEBUG) System.out.println("Ksmtp creating file '" + users[i] + "' in directory '" + directory + "'\n");
-				outFile = new BufferedWriter(
-					  new FileWriter(new File(directory,users[i]),true));
-				if(DEBUG) System.out.println("File creation successful. Writing to file.\n");
-				outFile.append("\n" + messageText + "\n");
-				if(DEBUG) System.out.println("File write successful. Closing file.\n");
-				outFile.close();
+				SmtpRelay.enqueue(sender, relayRcpts, traceLine(), spool);
 			}catch(IOException e){
-				System.out.println("Error writing user file: "
-						           + users[i] + "\n"
+				SmtpLog.error(sessionId, clientIp, "Error spooling relay message: "
 						           + e.getMessage());
+				return false;
+			}
+		}
+		if(recipients.length() == 0) return true;
+		String[] users = recipients.split(",");
+		if(DEBUG) SmtpLog.debug("Ksmtp saving message for '" + recipients + "'");
+		String head = "\n" + messageText + "\n";
+		int lines = scanner.lines();
+		for(int i=1; i < head.length(); i++)
+			if(head.charAt(i) == '\n') lines++;
+		String[] errors = store.deliver(users, head.getBytes(UTF8), spool, lines);
+		boolean saved = true;
+		for(int i=0; i < users.length; i++){
+			if(errors[i] != null){
+				SmtpLog.error(sessionId, clientIp, "Error writing user file: "
+						           + users[i] + ": "
+						           + errors[i]);
+				saved = false;
 			}
 		}
+		return saved;
+	}
+	
+	/**
+	 * Purpose: Builds the Received: line that records this hop in
+	 *          a relayed message (RFC 5321 section 4.4).
+	 * 
+	 * @return String the trace line, without a line end
+	 * @see SmtpRelay.enqueue
+	 */
+	private String traceLine(){
+		SimpleDateFormat date = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z", Locale.US);
+		return "Received: from " + clientName + " ([" + clientIp + "]) by " + serverName
+			+ " with " + (tls != null ? "ESMTPS" : extendedHelo ? "ESMTP" : "SMTP")
+			+ " id " + sessionId + "; " + date.format(new Date());
 	}
 	
 	/**
@@ -415,14 +704,81 @@ class SmtpRequestHandler extends Thread{
 	 * @see nothing
 	 */
 	private void sendResponse(int code, String message){
+		lastCode = code;
 		try{
-			output.writeBytes(code + " " + message + "\r\n");
+			io.reply(code, message);
 		}catch(IOException e){
-			System.out.println("Error sending response: "
+			SmtpLog.error(sessionId, clientIp, "Error sending response: "
 					           + e.getMessage());
 		}
 	}
 	
+	/**
+	 * Purpose: Sends a multi-line reply, as used for EHLO.  All
+	 *          lines but the last are marked as continuations.
+	 *          
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *          
+	 * @param code Status code shared by every line
+	 * @param lines Reply lines, in order
+	 * 
+	 * Preconditions:
+	 *   lines contains at least one entry
+	 *   
+	 * @return void
+	 * @see sendResponse(int, String)
+	 */
+	private void sendResponse(int code, String[] lines){
+		lastCode = code;
+		try{
+			io.reply(code, lines);
+		}catch(IOException e){
+			SmtpLog.error(sessionId, clientIp, "Error sending response: "
+					           + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Purpose: Sends one of the precomputed fixed replies, which
+	 *          avoids building a String for the most common ones.
+	 *          
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *          
+	 * @param code Status code of the reply, for logging
+	 * @param reply Encoded reply from SessionIO.fixedReply
+	 * 
+	 * Preconditions:
+	 *   none
+	 *   
+	 * @return void
+	 * @see sendResponse(int, String)
+	 */
+	private void sendFixed(int code, byte[] reply){
+		lastCode = code;
+		try{
+			io.write(reply);
+		}catch(IOException e){
+			SmtpLog.error(sessionId, clientIp, "Error sending response: "
+					           + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Purpose: Looks up this machine's host name once, for the
+	 *          greeting and the fixed replies.
+	 * 
+	 * @return String local host name
+	 */
+	private static String localName(){
+		try{
+			return InetAddress.getLocalHost().getHostName();
+		}catch(UnknownHostException e){
+			return "localhost";
+		}
+	}
+	
 	/**
 	 * Purpose: Resetting the message whether by a RSET command,
 	 *          or by reaching the end of message transmission
@@ -440,6 +796,9 @@ class SmtpRequestHandler extends Thread{
 		if(heloDone()){
 			requiredCmd = MAIL;
 			messageText = "";
+			recipients = "";
+			relayRcpts.clear();
+			spool.reset();
 		}
 	}
 }
\ No newline at end of file
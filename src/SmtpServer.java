@@ -1,4 +1,5 @@
 import java.net.*;
+import java.util.*;
 
 /**
  * The SmtpServer Class is designed to listen for an incoming Smtp
@@ -16,10 +17,15 @@ class SmtpServer extends Thread{
 	// Private Data Members
 	//private int portNum;
 	private String domainName;
-	private String messageDir;
+	private MailStore messageDir;
 	private static boolean DEBUG = false;
 	private ServerSocket listener = null;
 	
+	// Drain state
+	private volatile boolean draining = false;
+	private Set<SmtpRequestHandler> sessions =
+		Collections.synchronizedSet(new HashSet<SmtpRequestHandler>());
+	
 	/**
 	 * Purpose: The SmtpServer constructor will instantiate an
 	 *          SmtpServer objects with the requested parameters.
@@ -34,7 +40,7 @@ class SmtpServer extends Thread{
 	 * @see nothing
 	 * 
 	 */
-	SmtpServer(String domain, String directory, ServerSocket s){
+	SmtpServer(String domain, MailStore directory, ServerSocket s){
 		domainName = domain;
 		messageDir = directory;
 		listener = s;
@@ -59,7 +65,7 @@ class SmtpServer extends Thread{
 	 * 
 	 */
 	public void run(){
-		if(DEBUG) System.out.println(".. .. The Smtp Server Thread is being run.");
+		if(DEBUG) SmtpLog.debug(".. .. The Smtp Server Thread is being run.");
 		listen();
 	}
 	
@@ -99,23 +105,120 @@ class SmtpServer extends Thread{
 		*/
 		
 		// Start listening
-		while(true){
+		while(!draining){
 			try{
 				// block until request encountered
 				Socket request = listener.accept();
-				if(DEBUG) System.out.println(".. .. Connection received from: " 
+				if(DEBUG) SmtpLog.debug(".. .. Connection received from: " 
 						+ request.getInetAddress().getCanonicalHostName() + "\n");
 				
 				
 				// Trigger the request handler thread, then 
 				// continue listening
-				if(DEBUG) System.out.println(".. .. Launching SmtpRequestHandler.");
-				new SmtpRequestHandler(request, domainName, messageDir);
-				if(DEBUG) System.out.println(".. .. SmtpRequestHandler completed.");
+				if(DEBUG) SmtpLog.debug(".. .. Launching SmtpRequestHandler.");
+				new SmtpRequestHandler(this, request, domainName, messageDir);
+				if(DEBUG) SmtpLog.debug(".. .. SmtpRequestHandler completed.");
 			}catch(Exception le){
-				System.out.println(".. .. An error occurred in the Smtp Server listener: " + le.getMessage());
+				// closing the listener is how drain() stops us
+				if(draining) break;
+				SmtpLog.error(0, null, "An error occurred in the Smtp Server listener: " + le.getMessage());
 				break;
 			}
 		}
 	}
+	
+	/**
+	 * Purpose: The drain() method performs a controlled shutdown.
+	 *          The listener is closed so no new connections are
+	 *          accepted, sessions waiting for a command between
+	 *          transactions are sent 421 and closed at once, the
+	 *          others answer their next command with 421 once
+	 *          their current transaction is complete, and the
+	 *          caller blocks until all sessions have finished or
+	 *          the timeout has elapsed.  Sessions still open at
+	 *          the deadline are closed.
+	 *          
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 * 
+	 * Preconditions:
+	 *   none
+	 *   
+	 * @param timeout Maximum number of milliseconds to wait for
+	 *                in-flight deliveries to be committed.
+	 * @return boolean TRUE if every session finished before the
+	 *                 deadline, FALSE if any had to be aborted.
+	 * @see SmtpRequestHandler.drainIdle(), SmtpRequestHandler.abort()
+	 * 
+	 */
+	public boolean drain(long timeout){
+		draining = true;
+		try{
+			listener.close();
+		}catch(Exception e){
+			if(DEBUG) SmtpLog.debug(".. .. Failed to close the listener");
+		}
+		
+		long deadline = System.currentTimeMillis() + timeout;
+		SmtpRequestHandler[] open;
+		synchronized(sessions){
+			open = sessions.toArray(new SmtpRequestHandler[0]);
+		}
+		for(int i=0; i < open.length; i++)
+			open[i].drainIdle();
+		boolean clean = true;
+		for(int i=0; i < open.length; i++){
+			long remaining = deadline - System.currentTimeMillis();
+			try{
+				if(remaining > 0) open[i].join(remaining);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			if(open[i].isAlive()){
+				clean = false;
+				open[i].abort();
+			}
+		}
+		return clean;
+	}
+	
+	/**
+	 * Purpose: Reports whether drain() has been called, so that
+	 *          request handlers know to refuse new transactions.
+	 * 
+	 * @return boolean TRUE once the server is shutting down
+	 */
+	boolean isDraining(){
+		return draining;
+	}
+	
+	/**
+	 * Purpose: Returns the number of sessions currently open.
+	 * 
+	 * @return int number of live request handlers
+	 */
+	int sessionCount(){
+		return sessions.size();
+	}
+	
+	/**
+	 * Purpose: Registers a request handler with the server so
+	 *          that drain() can wait for it.  Called by the
+	 *          handler before its thread is started.
+	 * 
+	 * @param h the request handler being opened
+	 */
+	void sessionOpened(SmtpRequestHandler h){
+		sessions.add(h);
+	}
+	
+	/**
+	 * Purpose: Removes a finished request handler from the set
+	 *          of open sessions.
+	 * 
+	 * @param h the request handler that has closed
+	 */
+	void sessionClosed(SmtpRequestHandler h){
+		sessions.remove(h);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,130 @@
+import java.io.*;
+import java.security.KeyStore;
+import javax.net.ssl.*;
+
+/**
+ * The SmtpTls class holds the server's TLS configuration for
+ * STARTTLS (RFC 3207) and the handshake counters.  One SSLContext
+ * is shared by every session so that its server session cache and
+ * session tickets let reconnecting senders resume instead of
+ * paying for a full handshake each time.
+ *
+ * The key store is taken from the standard javax.net.ssl.keyStore,
+ * javax.net.ssl.keyStorePassword and javax.net.ssl.keyStoreType
+ * system properties; when no key store is configured STARTTLS is
+ * not offered.
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class SmtpTls{
+	// Session cache tuning
+	private static int SESSION_CACHE_SIZE = 20000;
+	private static int SESSION_TIMEOUT = 24 * 60 * 60;
+
+	private static SSLContext context = null;
+
+	// Handshake metrics, guarded by SmtpTls.class
+	private static long fullHandshakes = 0;
+	private static long resumedHandshakes = 0;
+	private static long failedHandshakes = 0;
+
+	/**
+	 * Purpose: Loads the key store named by the system properties
+	 *          and builds the shared SSLContext.  Does nothing if
+	 *          no key store has been configured.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   Must be called before the SmtpServer accepts connections.
+	 *
+	 * @throws Exception if the key store cannot be loaded
+	 * @return void
+	 * @see available()
+	 */
+	static synchronized void configure() throws Exception{
+		String path = System.getProperty("javax.net.ssl.keyStore");
+		if(path == null || context != null) return;
+		String pass = System.getProperty("javax.net.ssl.keyStorePassword", "");
+		String type = System.getProperty("javax.net.ssl.keyStoreType",
+				KeyStore.getDefaultType());
+
+		// Stateless TLS 1.3 tickets let any session resume without
+		// the server holding state; the cache covers TLS 1.2.
+		if(System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null)
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+
+		KeyStore ks = KeyStore.getInstance(type);
+		InputStream in = new FileInputStream(path);
+		try{
+			ks.load(in, pass.toCharArray());
+		}finally{
+			in.close();
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+				KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, pass.toCharArray());
+
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(kmf.getKeyManagers(), null, null);
+		SSLSessionContext sessions = ctx.getServerSessionContext();
+		sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+		sessions.setSessionTimeout(SESSION_TIMEOUT);
+		context = ctx;
+	}
+
+	/**
+	 * Purpose: Reports whether STARTTLS can be offered.
+	 *
+	 * @return boolean TRUE once a key store has been loaded
+	 */
+	static boolean available(){
+		return context != null;
+	}
+
+	/**
+	 * Purpose: Creates a server mode SSLEngine for one session.
+	 *
+	 * @param host Peer host, used only as a cache hint
+	 * @param port Peer port, used only as a cache hint
+	 * @return SSLEngine ready for the handshake
+	 */
+	static SSLEngine createEngine(String host, int port){
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(false);
+		return engine;
+	}
+
+	/**
+	 * Purpose: Records the outcome of a handshake.
+	 *
+	 * @param resumed TRUE if an existing session was resumed
+	 */
+	static synchronized void handshakeDone(boolean resumed){
+		if(resumed) resumedHandshakes++;
+		else fullHandshakes++;
+	}
+
+	/**
+	 * Purpose: Records a handshake that did not complete.
+	 */
+	static synchronized void handshakeFailed(){
+		failedHandshakes++;
+	}
+
+	/**
+	 * Purpose: Summarizes the handshake counters for the admin
+	 *          STATUS command.
+	 *
+	 * @return String counters as "full/resumed/failed"
+	 */
+	static synchronized String stats(){
+		return "tls full=" + fullHandshakes
+			+ " resumed=" + resumedHandshakes
+			+ " failed=" + failedHandshakes;
+	}
+}
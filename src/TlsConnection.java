@@ -0,0 +1,284 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * The TlsConnection class runs an SSLEngine over a session's
+ * non-blocking socket channel.  The handshake and write() wait in
+ * ReadWaiter, through the SessionIO, whenever the channel cannot
+ * take or give more.  read() reads the network at most once per
+ * call and returns 0 rather than wait for the rest of a partial
+ * record, so the SessionIO can wait without holding a buffer.  It
+ * reads and writes ByteBuffers.
+ *
+ * @author Ken Molcsan Jr.
+ * @version 1.0a
+ *
+ */
+
+class TlsConnection{
+	// Private Data Members
+	private SSLEngine engine;
+	private SocketChannel net;
+	private SessionIO io;
+
+	// Ciphertext read from the peer, kept in fill (write) mode
+	private ByteBuffer inNet;
+	// Ciphertext waiting to be sent, kept in fill (write) mode
+	private ByteBuffer outNet;
+	// Decrypted application data, kept in fill (write) mode
+	private ByteBuffer inApp;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private boolean resumed = false;
+	private boolean eof = false;
+
+	/**
+	 * Purpose: The TlsConnection constructor sizes the buffers
+	 *          from the engine's session.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions:
+	 *   The engine must not have started its handshake.
+	 *
+	 * @param eng Server mode engine from SmtpTls
+	 * @param session The session whose channel carries the ciphertext
+	 * @return TlsConnection object
+	 * @see SmtpTls.createEngine
+	 */
+	TlsConnection(SSLEngine eng, SessionIO session){
+		engine = eng;
+		io = session;
+		net = session.getChannel();
+		SSLSession s = engine.getSession();
+		inNet = ByteBuffer.allocate(s.getPacketBufferSize());
+		outNet = ByteBuffer.allocate(s.getPacketBufferSize());
+		inApp = ByteBuffer.allocate(s.getApplicationBufferSize());
+	}
+
+	/**
+	 * Purpose: Runs the handshake to completion.  A session is
+	 *          counted as resumed when the negotiated SSLSession
+	 *          was created before this handshake started.
+	 *
+	 * @author Ken Molcsan
+	 * @version 1.0a
+	 *
+	 * Preconditions: none
+	 *
+	 * @throws IOException if the handshake fails or the peer
+	 *                     disconnects
+	 * @return void
+	 * @see isResumed
+	 */
+	void handshake() throws IOException{
+		long started = System.currentTimeMillis();
+		try{
+			engine.beginHandshake();
+			process(engine.getHandshakeStatus());
+		}catch(IOException e){
+			SmtpTls.handshakeFailed();
+			throw e;
+		}
+		resumed = engine.getSession().getCreationTime() < started;
+		SmtpTls.handshakeDone(resumed);
+	}
+
+	/**
+	 * Purpose: Reports whether the handshake resumed a session.
+	 *
+	 * @return boolean TRUE for an abbreviated handshake
+	 */
+	boolean isResumed(){
+		return resumed;
+	}
+
+	/**
+	 * Purpose: Describes the negotiated protocol and cipher.
+	 *
+	 * @return String e.g. "TLSv1.3 TLS_AES_128_GCM_SHA256"
+	 */
+	String describe(){
+		SSLSession s = engine.getSession();
+		return s.getProtocol() + " " + s.getCipherSuite();
+	}
+
+	/**
+	 * Purpose: Drives the engine until it no longer needs to
+	 *          exchange handshake messages.
+	 */
+	private void process(HandshakeStatus hs) throws IOException{
+		while(true){
+			switch(hs){
+			case NEED_WRAP:
+				hs = wrap(EMPTY);
+				break;
+			case NEED_UNWRAP:
+				if(unwrap(true) == Status.CLOSED) throw new EOFException("TLS peer closed");
+				hs = engine.getHandshakeStatus();
+				break;
+			case NEED_TASK:
+				Runnable task;
+				while((task = engine.getDelegatedTask()) != null)
+					task.run();
+				hs = engine.getHandshakeStatus();
+				break;
+			default:
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Purpose: Encrypts src and sends every resulting record.
+	 *
+	 * @return HandshakeStatus after the last wrap
+	 */
+	private HandshakeStatus wrap(ByteBuffer src) throws IOException{
+		SSLEngineResult r;
+		do{
+			r = engine.wrap(src, outNet);
+			if(r.getStatus() == Status.BUFFER_OVERFLOW){
+				outNet = grow(outNet, engine.getSession().getPacketBufferSize());
+				continue;
+			}
+			outNet.flip();
+			while(outNet.hasRemaining())
+				if(net.write(outNet) == 0) io.await(SelectionKey.OP_WRITE);
+			outNet.clear();
+			if(r.getStatus() == Status.CLOSED) break;
+		}while(src.hasRemaining());
+		return r.getHandshakeStatus();
+	}
+
+	/**
+	 * Purpose: Decrypts at least one record into inApp, reading
+	 *          from the network as needed when asked to wait.
+	 *
+	 * @param wait FALSE to return BUFFER_UNDERFLOW instead of
+	 *             reading the network
+	 * @return Status of the last unwrap, CLOSED at end of stream
+	 */
+	private Status unwrap(boolean wait) throws IOException{
+		while(true){
+			inNet.flip();
+			SSLEngineResult r = engine.unwrap(inNet, inApp);
+			inNet.compact();
+			switch(r.getStatus()){
+			case OK:
+				if(r.getHandshakeStatus() == HandshakeStatus.NEED_TASK
+				   || r.getHandshakeStatus() == HandshakeStatus.NEED_WRAP
+				   || r.bytesProduced() > 0
+				   || r.bytesConsumed() > 0)
+					return Status.OK;
+				break;
+			case BUFFER_OVERFLOW:
+				inApp = grow(inApp, engine.getSession().getApplicationBufferSize());
+				continue;
+			case BUFFER_UNDERFLOW:
+				if(inNet.position() == inNet.capacity())
+					inNet = grow(inNet, engine.getSession().getPacketBufferSize());
+				break;
+			case CLOSED:
+				return Status.CLOSED;
+			}
+			// more ciphertext is needed
+			if(!wait) return Status.BUFFER_UNDERFLOW;
+			int n;
+			while((n = net.read(inNet)) == 0)
+				io.await(SelectionKey.OP_READ);
+			if(n < 0){
+				try{ engine.closeInbound(); }catch(SSLException e){}
+				return Status.CLOSED;
+			}
+		}
+	}
+
+	private static ByteBuffer grow(ByteBuffer b, int min){
+		ByteBuffer n = ByteBuffer.allocate(Math.max(min, b.capacity() * 2));
+		b.flip();
+		n.put(b);
+		return n;
+	}
+
+	/**
+	 * Purpose: Reads decrypted application data into a buffer.
+	 *
+	 * @param dst Destination buffer, in fill mode
+	 * @return int bytes read, 0 if no complete record has arrived
+	 *             yet, or -1 at end of stream
+	 */
+	int read(ByteBuffer dst) throws IOException{
+		int r = fillApp();
+		if(r <= 0) return r;
+		inApp.flip();
+		int n = Math.min(dst.remaining(), inApp.remaining());
+		int limit = inApp.limit();
+		inApp.limit(inApp.position() + n);
+		dst.put(inApp);
+		inApp.limit(limit);
+		inApp.compact();
+		return n;
+	}
+
+	/**
+	 * Purpose: Unwraps buffered records until some application
+	 *          data is available.  The network is read at most
+	 *          once, and only if nothing could be unwrapped first.
+	 *
+	 * @return int 1 once data is available, 0 if more input is
+	 *             needed, -1 at end of stream
+	 */
+	private int fillApp() throws IOException{
+		boolean progress = false;
+		while(inApp.position() == 0){
+			if(eof) return -1;
+			Status s = unwrap(false);
+			if(s == Status.BUFFER_UNDERFLOW){
+				// never wait for the rest of a partial record
+				if(progress) return 0;
+				progress = true;
+				if(net.read(inNet) < 0){
+					try{ engine.closeInbound(); }catch(SSLException e){}
+					eof = true;
+				}
+				continue;
+			}
+			progress = true;
+			if(s == Status.CLOSED){
+				eof = true;
+				continue;
+			}
+			// key updates and tickets can arrive at any time
+			process(engine.getHandshakeStatus());
+		}
+		return 1;
+	}
+
+	/**
+	 * Purpose: Encrypts and sends the remaining bytes of a buffer.
+	 *
+	 * @param src Source buffer, in drain mode
+	 */
+	void write(ByteBuffer src) throws IOException{
+		if(!src.hasRemaining()) return;
+		process(wrap(src));
+	}
+
+	/**
+	 * Purpose: Sends close_notify.  The underlying channels are
+	 *          left for the caller to close.
+	 */
+	void close() throws IOException{
+		engine.closeOutbound();
+		while(!engine.isOutboundDone())
+			wrap(EMPTY);
+	}
+}